@@ -0,0 +1,320 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Micro benchmarks for the stages of training and classification, run on a
+// synthetic corpus so they can be compared across machines and over time.
+//
+//   java Benchmarks [-docs n] [-vocab n] [-labels n] [-length n] [-seconds n] [-csv]
+//
+// Every benchmark is warmed up, then timed over several rounds, and reports the
+// time per operation (a document, unless the name says otherwise). The
+// serve benchmarks report the median and 99th percentile time of a request
+// to a ClassificationServer, and requests per second.
+public class Benchmarks {
+
+    // corpus settings
+    static int docs = 20000;
+    static int vocabSize = 50000;
+    static int labels = 15;
+    static int length = 200;
+
+    // length of the warm up and of each measured round
+    static double seconds = 1.0;
+    static final int ROUNDS = 5;
+
+    static boolean csv = false;
+
+    // clients posting to the server at once in the serve benchmarks
+    static final int SERVE_CLIENTS = 8;
+
+    // results are folded in here so the JIT cannot drop the work
+    static volatile long sink;
+
+    // one stage to time, returns how many operations it did
+    interface Stage {
+        long run() throws IOException;
+    }
+
+    public static void main(String[] args) throws IOException {
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-docs")) docs = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-vocab")) vocabSize = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-labels")) labels = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-length")) length = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-seconds")) seconds = Double.parseDouble(args[++i]);
+            else if (args[i].equals("-csv")) csv = true;
+            else {
+                System.out.println("Options: -docs n, -vocab n, -labels n, -length n, -seconds n, -csv");
+                System.exit(1);
+            }
+        }
+        if (labels < 1) {
+            System.out.println("-labels must be at least 1");
+            System.exit(1);
+        }
+
+        Vocabulary stopwords = Model.defaultStopwords();
+        File corpus = writeCorpus(stopwords);
+        corpus.deleteOnExit();
+
+        Model model = new ModelBuilder(stopwords).addFile(corpus).build();
+
+        // the same documents as word lists and as word ids
+        List<ArrayList<String>> wordLists = new ArrayList<>();
+        List<int[]> idLists = new ArrayList<>();
+        CorpusReader.read(corpus, null, doc -> {
+            ArrayList<String> words = new ArrayList<>(doc.count);
+            for (int i = 0; i < doc.count; i++) words.add(doc.word(i));
+            wordLists.add(words);
+        });
+        CorpusReader.read(corpus, stopwords, doc -> {
+            int count = model.wordIds(doc);
+            idLists.add(Arrays.copyOf(doc.ids, count));
+        });
+
+        if (csv) System.out.println("benchmark,docs,vocab,labels,length,ns_per_op,ops_per_second");
+        else System.out.println(docs + " documents, " + vocabSize + " words, " + labels + " labels, "
+                + length + " words per document, " + (corpus.length() >> 20) + " MB");
+
+        time("tokenize", () -> {
+            CorpusReader.read(corpus, null, doc -> sink += doc.count);
+            return docs;
+        });
+
+        time("tokenize+stopwords", () -> {
+            CorpusReader.read(corpus, stopwords, doc -> sink += doc.count);
+            return docs;
+        });
+
+        time("trimDocument", () -> {
+            for (ArrayList<String> words : wordLists) {
+                sink += model.trimDocument(new ArrayList<>(words)).size();
+            }
+            return docs;
+        });
+
+        time("train", () -> {
+            Model trained = new ModelBuilder(stopwords).addFile(corpus).build();
+            sink += trained.logCounts.capacity();
+            return docs;
+        });
+
+        time("optimize (per model)", () -> {
+            model.optimize();
+            sink += model.logCounts.capacity();
+            return 1;
+        });
+
+        time("scoreDocument", () -> {
+            for (int[] ids : idLists) {
+                sink += model.mostProbableLabel(model.scoreDocument(ids));
+            }
+            return docs;
+        });
+
+        model.scalarScoring = true;
+        time("scoreDocument (scalar)", () -> {
+            for (int[] ids : idLists) {
+                sink += model.mostProbableLabel(model.scoreDocument(ids));
+            }
+            return docs;
+        });
+        model.scalarScoring = false;
+
+        Model sparseModel = new ModelBuilder(stopwords).sparse(true).addFile(corpus).build();
+        time("scoreDocument (postings)", () -> {
+            for (int[] ids : idLists) {
+                sink += sparseModel.mostProbableLabel(sparseModel.scoreDocument(ids));
+            }
+            return docs;
+        });
+
+        for (QuantizedTable.Format format : QuantizedTable.Format.values()) {
+            Model quantizedModel = new ModelBuilder(stopwords).addFile(corpus).build();
+            quantizedModel.quantize(format);
+            time("scoreDocument (" + format.name().toLowerCase() + ")", () -> {
+                for (int[] ids : idLists) {
+                    sink += quantizedModel.mostProbableLabel(quantizedModel.scoreDocument(ids));
+                }
+                return docs;
+            });
+        }
+
+        time("guessClassLabel (words)", () -> {
+            for (ArrayList<String> words : wordLists) {
+                sink += model.guessClassLabel(new ArrayList<>(words));
+            }
+            return docs;
+        });
+
+        time("guessClassLabel (reader)", () -> {
+            CorpusReader.read(corpus, stopwords, doc -> sink += model.guessClassLabel(doc));
+            return docs;
+        });
+
+        List<byte[]> bodies = new ArrayList<>();
+        for (ArrayList<String> words : wordLists) bodies.add(String.join(" ", words).getBytes(StandardCharsets.UTF_8));
+        serve(model, bodies);
+    }
+
+    // POST bodies to a ClassificationServer on the loopback address from
+    // SERVE_CLIENTS threads, each over one kept-alive connection, and report
+    // the latency percentiles of the timed rounds
+    static void serve(Model model, List<byte[]> bodies) throws IOException {
+        ClassificationServer server = new ClassificationServer(model, 0, Runtime.getRuntime().availableProcessors(), null);
+        server.start();
+        ExecutorService clients = Executors.newFixedThreadPool(SERVE_CLIENTS);
+        try {
+            URL url = new URL("http", InetAddress.getLoopbackAddress().getHostAddress(), server.port(), "/classify");
+            post(clients, url, bodies, seconds);
+
+            long start = System.nanoTime();
+            long[] latencies = post(clients, url, bodies, ROUNDS * seconds);
+            long nanos = System.nanoTime() - start;
+            Arrays.sort(latencies);
+            double perSecond = latencies.length * 1e9 / nanos;
+            print("serve (p50)", latencies[latencies.length / 2], perSecond);
+            print("serve (p99)", latencies[(int) (latencies.length * 0.99)], perSecond);
+        } finally {
+            clients.shutdownNow();
+            server.stop();
+        }
+    }
+
+    // the time of every request the clients made in seconds
+    static long[] post(ExecutorService clients, URL url, List<byte[]> bodies, double seconds) throws IOException {
+        long end = System.nanoTime() + (long) (seconds * 1e9);
+        List<Future<long[]>> results = new ArrayList<>();
+        for (int c = 0; c < SERVE_CLIENTS; c++) {
+            int first = c;
+            results.add(clients.submit(() -> {
+                long[] times = new long[1024];
+                int n = 0;
+                for (int i = first; System.nanoTime() < end; i += SERVE_CLIENTS) {
+                    long started = System.nanoTime();
+                    post(url, bodies.get(i % bodies.size()));
+                    if (n == times.length) times = Arrays.copyOf(times, n * 2);
+                    times[n++] = System.nanoTime() - started;
+                }
+                return Arrays.copyOf(times, n);
+            }));
+        }
+
+        long[] all = new long[0];
+        try {
+            for (Future<long[]> result : results) {
+                long[] times = result.get();
+                int n = all.length;
+                all = Arrays.copyOf(all, n + times.length);
+                System.arraycopy(times, 0, all, n, times.length);
+            }
+        } catch (InterruptedException | ExecutionException exception) {
+            throw new IOException("Serve benchmark failed: " + exception, exception);
+        }
+        return all;
+    }
+
+    // one request, read to the end so the connection is kept alive for the next
+    static void post(URL url, byte[] body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(body.length);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(body);
+        }
+        if (connection.getResponseCode() != 200) throw new IOException("HTTP " + connection.getResponseCode());
+        try (InputStream in = connection.getInputStream()) {
+            byte[] buf = new byte[4096];
+            while (in.read(buf) >= 0) sink++;
+        }
+    }
+
+    // warm stage up, then report the mean time per operation over ROUNDS rounds
+    static void time(String name, Stage stage) throws IOException {
+        runFor(stage, seconds);
+
+        long ops = 0;
+        long nanos = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            ops += runFor(stage, seconds);
+            nanos += System.nanoTime() - start;
+        }
+
+        double nsPerOp = (double) nanos / ops;
+        print(name, nsPerOp, 1e9 / nsPerOp);
+    }
+
+    static void print(String name, double nsPerOp, double opsPerSecond){
+        if (csv) {
+            System.out.printf("%s,%d,%d,%d,%d,%.1f,%.1f%n", name, docs, vocabSize, labels, length, nsPerOp, opsPerSecond);
+        } else {
+            System.out.printf("%-28s %14.1f ns/op %14.1f ops/s%n", name, nsPerOp, opsPerSecond);
+        }
+    }
+
+    // run stage until at least seconds have passed, returns the operations done
+    static long runFor(Stage stage, double seconds) throws IOException {
+        long end = System.nanoTime() + (long) (seconds * 1e9);
+        long ops = 0;
+        do {
+            ops += stage.run();
+        } while (System.nanoTime() < end);
+        return ops;
+    }
+
+    // write a corpus of "text,label" lines. Words are drawn from a Zipf-like
+    // distribution over vocabSize made-up words, a share of each document comes
+    // from words its label favours, and some words are stop words
+    static File writeCorpus(Vocabulary stopwords) throws IOException {
+        File file = File.createTempFile("benchmark", ".txt");
+        Random random = new Random(42);
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            StringBuilder line = new StringBuilder();
+            for (int d = 0; d < docs; d++) {
+                int label = 1 + random.nextInt(labels);
+                line.setLength(0);
+                for (int w = 0; w < length; w++) {
+                    if (w > 0) line.append(' ');
+                    double kind = random.nextDouble();
+                    if (kind < 0.2) {
+                        line.append(stopwords.word(random.nextInt(stopwords.size())));
+                    } else if (kind < 0.5) {
+                        // words near the label's own slice of the vocabulary
+                        int slice = vocabSize / labels;
+                        line.append('w').append((label - 1) * slice + zipf(random, Math.max(1, slice)));
+                    } else {
+                        line.append('w').append(zipf(random, vocabSize));
+                    }
+                }
+                line.append(',').append(label).append('\n');
+                out.write(line.toString());
+            }
+        }
+        return file;
+    }
+
+    // rank in [0, n) with probability roughly proportional to 1 / (rank + 1)
+    static int zipf(Random random, int n){
+        return (int) Math.min(n - 1, Math.floor(Math.exp(random.nextDouble() * Math.log(n + 1)) - 1));
+    }
+}
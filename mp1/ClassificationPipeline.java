@@ -0,0 +1,288 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.DecimalFormat;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+// Classifies a stream of documents, one per line of text, and writes one line
+// per document in the same order:
+//
+//   label score1 score2 ...   scores[i] = log P(d|c) + log P(c) for the
+//                             class Model.labels[i], as ClassificationServer
+//
+// Four stages each run on their own thread and hand documents on through
+// queues of QUEUE_SIZE:
+//
+//   parse     read a line and split it into tokens
+//   filter    drop the stop words
+//   score     score the words against the model
+//   format    write the label and scores
+//
+// Documents come from a fixed pool, and a stage with a full queue ahead of it
+// waits, so a slow consumer holds the whole pipeline back and memory stays
+// the same however long the input runs. Each stage's busy and waiting time
+// is kept, waiting being on its queues or for input, and the stage that is
+// never waiting is the one to speed up.
+//
+// If a stage fails the others are interrupted and the input is closed. A
+// read from stdin may still never return, so run() gives the stages
+// STOP_MILLIS to finish, and they are daemon threads, which a parse thread
+// left blocked on its input cannot keep alive.
+class ClassificationPipeline {
+
+    // documents waiting between two stages
+    static final int QUEUE_SIZE = 256;
+
+    // how long run() waits for the stages to stop once one has failed
+    static final long STOP_MILLIS = 1000;
+
+    // a document on its way through, reused once written
+    private static class Item {
+        byte[] line = new byte[1024];
+        ByteBuffer buf = ByteBuffer.wrap(line);
+        final CorpusReader.Document doc = new CorpusReader.Document();
+        double[] scores;
+    }
+
+    // put after the last document, each stage passes it on and stops
+    private static final Item END = new Item();
+
+    private final Model model;
+    private final ResultCache cache;
+
+    // documents that are free, and between parse, filter, score and format
+    private final BlockingQueue<Item> free = new ArrayBlockingQueue<>(4 * QUEUE_SIZE);
+    private final BlockingQueue<Item> parsed = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final BlockingQueue<Item> filtered = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final BlockingQueue<Item> scored = new ArrayBlockingQueue<>(QUEUE_SIZE);
+
+    // the time each stage spent working and waiting on a queue, by stage
+    static final String[] STAGES = {"parse", "filter", "score", "format"};
+    final long[] busyNanos = new long[STAGES.length];
+    final long[] waitingNanos = new long[STAGES.length];
+
+    long documents;
+    long nanos;
+
+    // the first exception a stage threw, the others are stopped
+    private volatile Throwable failure;
+    private Thread[] threads;
+    // stages that have not returned yet, guarded by this
+    private int running;
+
+    ClassificationPipeline(Model model, ResultCache cache) {
+        this.model = model;
+        this.cache = cache;
+        for (int i = 0; i < 4 * QUEUE_SIZE; i++) free.add(new Item());
+    }
+
+    // classify every line of in and write the results to out, returns once
+    // all of them are written. Writing to out is what fails once a reader on
+    // the other end of a pipe goes away, so it should not be a PrintStream
+    public void run(InputStream in, OutputStream out) throws IOException {
+        long started = System.nanoTime();
+        threads = new Thread[] {
+                new Thread(() -> stage(() -> parse(in)), "pipeline-parse"),
+                new Thread(() -> stage(this::filter), "pipeline-filter"),
+                new Thread(() -> stage(this::score), "pipeline-score"),
+                new Thread(() -> stage(() -> format(out)), "pipeline-format"),
+        };
+        running = threads.length;
+        for (Thread thread : threads) {
+            thread.setDaemon(true);
+            thread.start();
+        }
+        try {
+            synchronized (this) {
+                while (running > 0 && failure == null) wait();
+            }
+            if (failure != null) {
+                stop(in);
+                long deadline = System.nanoTime() + STOP_MILLIS * 1000000;
+                for (Thread thread : threads) {
+                    long left = (deadline - System.nanoTime()) / 1000000;
+                    if (left > 0) thread.join(left);
+                }
+            }
+        } catch (InterruptedException exception) {
+            stop(in);
+            Thread.currentThread().interrupt();
+            throw new IOException("Pipeline interrupted", exception);
+        }
+        nanos = System.nanoTime() - started;
+
+        if (failure != null) throw new IOException("Pipeline failed: " + failure, failure);
+    }
+
+    // wake the stages waiting on a queue, and the parse stage reading in if
+    // closing in is enough to
+    private void stop(InputStream in){
+        for (Thread thread : threads) thread.interrupt();
+        try {
+            in.close();
+        } catch (IOException ignored) {
+            // the stages are stopping anyway
+        }
+    }
+
+    private interface Stage {
+        void run() throws Exception;
+    }
+
+    // run one stage, and if it fails have run() stop the others, which may be
+    // waiting on it
+    private void stage(Stage body){
+        try {
+            body.run();
+        } catch (InterruptedException exception) {
+            // stopped because another stage failed
+        } catch (Throwable throwable) {
+            synchronized (this) {
+                if (failure == null) failure = throwable;
+            }
+        } finally {
+            synchronized (this) {
+                running--;
+                notifyAll();
+            }
+        }
+    }
+
+    // one line of in per document, without its newline
+    private void parse(InputStream in) throws IOException, InterruptedException {
+        byte[] chunk = new byte[1 << 16];
+        int length = 0;
+        int read = 0;
+        int next = 0;
+        Item item = null;
+        while (true) {
+            if (next == read) {
+                long started = System.nanoTime();
+                read = in.read(chunk);
+                waitingNanos[0] += System.nanoTime() - started;
+                next = 0;
+                if (read < 0) break;
+                continue;
+            }
+
+            if (item == null) {
+                item = take(0, free);
+                length = 0;
+            }
+            long started = System.nanoTime();
+            int end = next;
+            while (end < read && chunk[end] != '\n') end++;
+            if (length + end - next > item.line.length) {
+                item.line = Arrays.copyOf(item.line, Math.max(length + end - next, item.line.length * 2));
+                item.buf = ByteBuffer.wrap(item.line);
+            }
+            System.arraycopy(chunk, next, item.line, length, end - next);
+            length += end - next;
+            next = end;
+            if (end == read) {
+                // the line goes on in the next chunk
+                busyNanos[0] += System.nanoTime() - started;
+                continue;
+            }
+            next++;
+            CorpusReader.tokenize(item.buf, 0, length, null, item.doc);
+            long spent = System.nanoTime() - started;
+            busyNanos[0] += spent;
+            if (Metrics.enabled) Metrics.PARSE.record(spent);
+            put(0, parsed, item);
+            item = null;
+        }
+
+        // a last line without a newline
+        if (item != null && length > 0) {
+            CorpusReader.tokenize(item.buf, 0, length, null, item.doc);
+            put(0, parsed, item);
+        }
+        put(0, parsed, END);
+    }
+
+    private void filter() throws InterruptedException {
+        Item item;
+        while ((item = take(1, parsed)) != END) {
+            long started = System.nanoTime();
+            CorpusReader.removeStopwords(item.doc, model.stopwordSet);
+            long filteredAt = System.nanoTime();
+            busyNanos[1] += filteredAt - started;
+            if (Metrics.enabled) Metrics.STOPWORDS.record(filteredAt - started);
+            put(1, filtered, item);
+        }
+        put(1, filtered, END);
+    }
+
+    private void score() throws InterruptedException {
+        Item item;
+        while ((item = take(2, filtered)) != END) {
+            long started = System.nanoTime();
+            if (cache != null) {
+                item.scores = cache.classify(model, item.doc).scores;
+                if (Metrics.enabled) model.wordIds(item.doc);
+            } else {
+                item.scores = model.scoreDocument(item.doc);
+            }
+            long spent = System.nanoTime() - started;
+            busyNanos[2] += spent;
+            if (Metrics.enabled) Metrics.labelled(item.doc, model.mostProbableLabel(item.scores), spent);
+            put(2, scored, item);
+        }
+        put(2, scored, END);
+    }
+
+    private void format(OutputStream out) throws IOException, InterruptedException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 16);
+        StringBuilder line = new StringBuilder();
+        Item item;
+        while ((item = take(3, scored)) != END) {
+            long started = System.nanoTime();
+            line.setLength(0);
+            line.append(model.mostProbableLabel(item.scores));
+            for (double score : item.scores) line.append(' ').append(score);
+            writer.append(line).append('\n');
+            item.scores = null;
+            long spent = System.nanoTime() - started;
+            busyNanos[3] += spent;
+            if (Metrics.enabled) Metrics.OUTPUT.record(spent);
+            documents++;
+            put(3, free, item);
+
+            // let a reader on the other end of a pipe see results as they come
+            if (scored.isEmpty()) writer.flush();
+        }
+        writer.flush();
+    }
+
+    private Item take(int stage, BlockingQueue<Item> queue) throws InterruptedException {
+        long started = System.nanoTime();
+        Item item = queue.take();
+        waitingNanos[stage] += System.nanoTime() - started;
+        return item;
+    }
+
+    private void put(int stage, BlockingQueue<Item> queue, Item item) throws InterruptedException {
+        long started = System.nanoTime();
+        queue.put(item);
+        waitingNanos[stage] += System.nanoTime() - started;
+    }
+
+    public void print(PrintStream out){
+        DecimalFormat decFormat = new DecimalFormat("0.000");
+        out.println(documents + " documents in " + decFormat.format(nanos / 1e9) + " seconds, "
+                + decFormat.format(documents * 1e9 / Math.max(1, nanos)) + " documents/second (pipeline)");
+        for (int i = 0; i < STAGES.length; i++) {
+            out.println(STAGES[i] + ": " + decFormat.format(busyNanos[i] / 1e9) + " seconds busy, "
+                    + decFormat.format(waitingNanos[i] / 1e9) + " seconds waiting");
+        }
+    }
+}
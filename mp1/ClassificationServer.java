@@ -0,0 +1,221 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// Long running HTTP service that classifies documents against one trained model.
+//
+//   POST /classify   body is the text of one document
+//   -> {"label":3,"labels":[1,2,...],"scores":[-1234.5,...]}
+//      scores[i] = log P(d|c) + log P(c) for the class labels[i]
+//
+// Handler threads only tokenize the request and, unless a ResultCache already
+// has its result, queue it. Scorer threads take
+// whatever has queued up (up to MAX_BATCH requests) and score it as one
+// micro-batch against a single snapshot of the model, so a burst of concurrent
+// requests costs one model read instead of one per request.
+//
+// There is no authentication, so the server listens on the loopback address
+// unless it is given another one, and bodies over MAX_BODY_BYTES get a 413.
+class ClassificationServer {
+
+    // most requests scored together
+    static final int MAX_BATCH = 64;
+    // requests waiting to be scored before new ones are turned away
+    static final int QUEUE_SIZE = 4096;
+    // how long a handler waits for its scores
+    static final long TIMEOUT_MILLIS = 5000;
+    // largest request body read, a document is rarely over a few hundred KB
+    static final int MAX_BODY_BYTES = 8 << 20;
+
+    // a tokenized request waiting for its scores
+    private static class Request {
+        final CorpusReader.Document doc = new CorpusReader.Document();
+        final CompletableFuture<double[]> scores = new CompletableFuture<>();
+    }
+
+    private final Model model;
+    private final BlockingQueue<Request> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final HttpServer http;
+    private final ExecutorService handlers;
+    private final ExecutorService scorers;
+    private final int scorerCount;
+    // results of documents seen before, null for no cache
+    private final ResultCache cache;
+
+    // a server on the loopback address
+    ClassificationServer(Model model, int port, int threads, ResultCache cache) throws IOException {
+        this(model, InetAddress.getLoopbackAddress(), port, threads, cache);
+    }
+
+    // a server listening on address, which may be the wildcard address
+    ClassificationServer(Model model, InetAddress address, int port, int threads, ResultCache cache) throws IOException {
+        this.model = model;
+        this.scorerCount = threads;
+        this.cache = cache;
+
+        // small responses would otherwise sit out Nagle's algorithm for ~40 ms
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        http = HttpServer.create(new InetSocketAddress(address, port), 0);
+        http.createContext("/classify", this::handle);
+        handlers = Executors.newFixedThreadPool(2 * threads);
+        http.setExecutor(handlers);
+        scorers = Executors.newFixedThreadPool(threads);
+    }
+
+    public void start(){
+        for (int i = 0; i < scorerCount; i++) scorers.execute(this::score);
+        http.start();
+    }
+
+    public void stop(){
+        http.stop(0);
+        handlers.shutdownNow();
+        scorers.shutdownNow();
+    }
+
+    public int port(){
+        return http.getAddress().getPort();
+    }
+
+    public InetAddress address(){
+        return http.getAddress().getAddress();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                respond(exchange, 405, "{\"error\":\"POST a document to /classify\"}");
+                return;
+            }
+
+            String length = exchange.getRequestHeaders().getFirst("Content-Length");
+            byte[] body = null;
+            if (length == null || Long.parseLong(length) <= MAX_BODY_BYTES) {
+                body = readAll(exchange.getRequestBody(), MAX_BODY_BYTES);
+            }
+            if (body == null) {
+                respond(exchange, 413, "{\"error\":\"documents are limited to " + MAX_BODY_BYTES + " bytes\"}");
+                return;
+            }
+
+            Request request = new Request();
+            long started = Metrics.enabled ? System.nanoTime() : 0;
+            CorpusReader.tokenize(ByteBuffer.wrap(body), 0, body.length, model.stopwordSet, request.doc);
+            if (Metrics.enabled) Metrics.PARSE.record(System.nanoTime() - started);
+
+            long key = 0;
+            long version = model.version;
+            if (cache != null) {
+                key = ResultCache.key(request.doc);
+                ResultCache.Result cached = cache.get(key, version);
+                if (cached != null) {
+                    respond(exchange, 200, toJson(cached.scores));
+                    return;
+                }
+            }
+
+            if (!queue.offer(request)) {
+                respond(exchange, 503, "{\"error\":\"too many requests queued\"}");
+                return;
+            }
+
+            double[] scores = request.scores.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            if (cache != null) cache.put(key, ResultCache.result(model, scores, version));
+            started = Metrics.enabled ? System.nanoTime() : 0;
+            respond(exchange, 200, toJson(scores));
+            if (Metrics.enabled) Metrics.OUTPUT.record(System.nanoTime() - started);
+        } catch (TimeoutException timeout) {
+            respond(exchange, 503, "{\"error\":\"timed out\"}");
+        } catch (InterruptedException | ExecutionException exception) {
+            respond(exchange, 500, "{\"error\":\"" + exception.getClass().getSimpleName() + "\"}");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    // scorer thread: score everything queued as one batch, then wait for more
+    private void score(){
+        List<Request> batch = new ArrayList<>(MAX_BATCH);
+        List<CorpusReader.Document> docs = new ArrayList<>(MAX_BATCH);
+        try {
+            while (true) {
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH - 1);
+                for (Request request : batch) docs.add(request.doc);
+
+                try {
+                    long started = Metrics.enabled ? System.nanoTime() : 0;
+                    double[][] scores = model.scoreDocuments(docs);
+                    if (Metrics.enabled) {
+                        // each request is charged its share of the batch
+                        long nanos = (System.nanoTime() - started) / scores.length;
+                        for (int i = 0; i < scores.length; i++) Metrics.labelled(docs.get(i), model.mostProbableLabel(scores[i]), nanos);
+                    }
+                    for (int i = 0; i < scores.length; i++) batch.get(i).scores.complete(scores[i]);
+                } catch (RuntimeException exception) {
+                    for (Request request : batch) request.scores.completeExceptionally(exception);
+                }
+                batch.clear();
+                docs.clear();
+            }
+        } catch (InterruptedException stopped) {
+            // stop() shuts the scorers down
+        }
+    }
+
+    private String toJson(double[] scores){
+        // an update() may have added labels after these scores were taken
+        int[] labels = model.labels;
+        StringBuilder json = new StringBuilder(32 + 32 * scores.length);
+        json.append("{\"label\":").append(model.mostProbableLabel(scores)).append(",\"labels\":[");
+        for (int i = 0; i < scores.length; i++) {
+            if (i > 0) json.append(',');
+            json.append(labels[i]);
+        }
+        json.append("],\"scores\":[");
+        for (int i = 0; i < scores.length; i++) {
+            if (i > 0) json.append(',');
+            json.append(scores[i]);
+        }
+        return json.append("]}").toString();
+    }
+
+    // the whole of in, or null as soon as it runs past limit bytes
+    private static byte[] readAll(InputStream in, int limit) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int read;
+        while ((read = in.read(buf)) > 0) {
+            if (out.size() + read > limit) return null;
+            out.write(buf, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,227 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+// Reads files of "text,label" lines straight out of a memory-mapped FileChannel.
+// Lines are split on their last comma and tokens on whitespace at the byte level;
+// a token is only a position, a length and its Vocabulary hash in the mapped
+// buffer, so callers can look it up without ever building a String. Tokens found
+// in the stop word set passed in are dropped while tokenizing.
+class CorpusReader {
+
+    // largest stretch of the file mapped at once. Windows end on a newline so
+    // no line is cut in two, and files over 2 GB are read one window at a time
+    static final long WINDOW = 1L << 30;
+
+    // one line of the file, reused for every line a reader hands out
+    static class Document {
+        // buffer the tokens point into
+        ByteBuffer buf;
+        // token i is the bytes [starts[i], starts[i] + lengths[i]) of buf,
+        // with Vocabulary.hash of those bytes in hashes[i]
+        int[] starts = new int[256];
+        int[] lengths = new int[256];
+        int[] hashes = new int[256];
+        // scratch space for callers to put the word ids of the tokens, and
+        // then those of their n-grams, see ensureIds
+        int[] ids = new int[256];
+        // scratch space for the vocab key of an n-gram, see NGrams
+        final ByteBuffer key = ByteBuffer.allocate(NGrams.KEY_BYTES);
+        int count;
+        int label;
+
+        private void add(int start, int length, int hash){
+            if(count == starts.length){
+                starts = Arrays.copyOf(starts, count * 2);
+                lengths = Arrays.copyOf(lengths, count * 2);
+                hashes = Arrays.copyOf(hashes, count * 2);
+                ids = Arrays.copyOf(ids, count * 2);
+            }
+            starts[count] = start;
+            lengths[count] = length;
+            hashes[count] = hash;
+            count++;
+        }
+
+        // make room for n ids, keeping those already there
+        void ensureIds(int n){
+            if(ids.length < n) ids = Arrays.copyOf(ids, Math.max(n, ids.length * 2));
+        }
+
+        // token i decoded to a String, for callers that need one
+        public String word(int i){
+            byte[] bytes = new byte[lengths[i]];
+            for(int j = 0; j < bytes.length; j++){
+                bytes[j] = buf.get(starts[i] + j);
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    interface DocumentHandler {
+        void document(Document doc);
+    }
+
+    // hand every line of file to handler, in order, leaving out stopwords
+    // (which may be null)
+    public static void read(File file, Vocabulary stopwords, DocumentHandler handler) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            read(channel, 0, channel.size(), stopwords, handler);
+        }
+    }
+
+    // hand every line in the bytes [start, end) of channel to handler, in order.
+    // start and end should be line boundaries, see split()
+    public static void read(FileChannel channel, long start, long end, Vocabulary stopwords,
+                            DocumentHandler handler) throws IOException {
+        Document doc = new Document();
+        long pos = start;
+        while (pos < end) {
+            long size = Math.min(WINDOW, end - pos);
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, pos, size);
+
+            // back up to the last newline so the next window starts a line
+            int limit = (int) size;
+            if (pos + size < end) {
+                while (limit > 0 && buf.get(limit - 1) != '\n') limit--;
+                if (limit == 0) throw new IOException("Line longer than " + WINDOW + " bytes at offset " + pos);
+            }
+
+            doc.buf = buf;
+            int lineStart = 0;
+            while (lineStart < limit) {
+                int lineEnd = lineStart;
+                while (lineEnd < limit && buf.get(lineEnd) != '\n') lineEnd++;
+                if (parseLine(buf, lineStart, lineEnd, stopwords, doc)) handler.document(doc);
+                lineStart = lineEnd + 1;
+            }
+            pos += limit;
+        }
+    }
+
+    // split channel into at most parts ranges that start and end on line boundaries.
+    // returns the boundaries, range i is [bounds[i], bounds[i + 1])
+    public static long[] split(FileChannel channel, int parts) throws IOException {
+        long size = channel.size();
+        long[] bounds = new long[parts + 1];
+        int n = 0;
+        for (int i = 1; i < parts; i++) {
+            long bound = nextLineStart(channel, size * i / parts);
+            if (bound > bounds[n] && bound < size) bounds[++n] = bound;
+        }
+        bounds[++n] = size;
+        return Arrays.copyOf(bounds, n + 1);
+    }
+
+    // offset of the first line starting at or after pos
+    private static long nextLineStart(FileChannel channel, long pos) throws IOException {
+        if (pos == 0) return 0;
+        ByteBuffer buf = ByteBuffer.allocate(8192);
+        long offset = pos - 1;
+        while (true) {
+            buf.clear();
+            int read = channel.read(buf, offset);
+            if (read <= 0) return channel.size();
+            for (int i = 0; i < read; i++) {
+                if (buf.get(i) == '\n') return offset + i + 1;
+            }
+            offset += read;
+        }
+    }
+
+    // tokenize the line [start, end) of buf into doc, false for a blank line
+    private static boolean parseLine(ByteBuffer buf, int start, int end, Vocabulary stopwords,
+                                     Document doc) throws IOException {
+        int comma = end - 1;
+        while (comma >= start && buf.get(comma) != ',') comma--;
+        if (comma < start) {
+            for (int i = start; i < end; i++) {
+                if (!isSpace(buf.get(i))) throw new IOException("Line without a label: " + text(buf, start, end));
+            }
+            return false;
+        }
+
+        doc.label = parseLabel(buf, comma + 1, end);
+        if (Metrics.enabled) {
+            // time splitting and stop word removal apart, with the same result
+            long started = System.nanoTime();
+            tokenize(buf, start, comma, null, doc);
+            long parsed = System.nanoTime();
+            if (stopwords != null) removeStopwords(doc, stopwords);
+            Metrics.PARSE.record(parsed - started);
+            Metrics.STOPWORDS.record(System.nanoTime() - parsed);
+        } else {
+            tokenize(buf, start, comma, stopwords, doc);
+        }
+        return true;
+    }
+
+    // tokenize the unlabelled text [start, end) of buf into doc, leaving out
+    // stopwords (which may be null)
+    public static void tokenize(ByteBuffer buf, int start, int end, Vocabulary stopwords, Document doc){
+        doc.buf = buf;
+        doc.count = 0;
+        int i = start;
+        while (i < end) {
+            while (i < end && isSpace(buf.get(i))) i++;
+
+            // hash the token in the same pass that finds its end
+            int tokenStart = i;
+            int hash = Vocabulary.HASH_SEED;
+            byte b;
+            while (i < end && !isSpace(b = buf.get(i))) {
+                hash = Vocabulary.hashStep(hash, b);
+                i++;
+            }
+            if (i == tokenStart) continue;
+
+            hash = Vocabulary.hashFinish(hash);
+            if (stopwords != null && stopwords.id(buf, tokenStart, i - tokenStart, hash) >= 0) continue;
+            doc.add(tokenStart, i - tokenStart, hash);
+        }
+    }
+
+    // drop the tokens of doc that are in stopwords, keeping the rest in order
+    static void removeStopwords(Document doc, Vocabulary stopwords){
+        int kept = 0;
+        for (int i = 0; i < doc.count; i++) {
+            if (stopwords.id(doc.buf, doc.starts[i], doc.lengths[i], doc.hashes[i]) >= 0) continue;
+            doc.starts[kept] = doc.starts[i];
+            doc.lengths[kept] = doc.lengths[i];
+            doc.hashes[kept] = doc.hashes[i];
+            kept++;
+        }
+        doc.count = kept;
+    }
+
+    private static int parseLabel(ByteBuffer buf, int start, int end) throws IOException {
+        while (start < end && isSpace(buf.get(start))) start++;
+        while (end > start && isSpace(buf.get(end - 1))) end--;
+
+        int label = 0;
+        boolean negative = start < end && buf.get(start) == '-';
+        for (int i = negative ? start + 1 : start; i < end; i++) {
+            byte b = buf.get(i);
+            if (b < '0' || b > '9') throw new IOException("Bad label: " + text(buf, start, end));
+            label = label * 10 + (b - '0');
+        }
+        if (start == end || (negative && start + 1 == end)) throw new IOException("Bad label: " + text(buf, start, end));
+        return negative ? -label : label;
+    }
+
+    // same characters as the \\s regex class
+    static boolean isSpace(byte b){
+        return b == ' ' || b == '\t' || b == '\n' || b == 0x0B || b == '\f' || b == '\r';
+    }
+
+    private static String text(ByteBuffer buf, int start, int end){
+        byte[] bytes = new byte[Math.min(end - start, 80)];
+        for (int i = 0; i < bytes.length; i++) bytes[i] = buf.get(start + i);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
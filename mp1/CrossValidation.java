@@ -0,0 +1,262 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// k-fold cross-validation over one labelled file. Document i goes to fold
+// i % k. The file is read and counted once, by fold, and the model for fold f
+// is the total of every fold's counts minus fold f's, which is the model that
+// training on the other k - 1 folds would give, without reading them again.
+// Folds are then built and labelled in parallel.
+class CrossValidation {
+
+    private final int folds;
+    private final int threads;
+    private final Vocabulary stopwords;
+    private final int hashBits;
+    private final int ngrams;
+    // n-grams counted fewer times than this in a fold's training documents
+    // are left out of its model and of the documents it labels, as
+    // FeatureSelection.gramMinCount and Model.dropped do
+    private final int gramMinCount;
+
+    // every document's label and word ids, and its fold is its index % folds
+    private final List<int[]> documentIds = new ArrayList<>();
+    private final List<Integer> documentLabels = new ArrayList<>();
+
+    // ids of the words in every fold, shared by every fold's model
+    private Vocabulary vocab;
+
+    // counts of each fold, and of all of them, by label
+    private final List<TreeMap<Integer, Category>> foldCounts = new ArrayList<>();
+    private final TreeMap<Integer, Category> totalCounts = new TreeMap<>();
+
+    // labelled correctly and in all, by fold
+    final int[] correct;
+    final int[] labelled;
+    // confusion[actual][guessed], indexes into labels
+    int[] labels;
+    long[][] confusion;
+
+    long nanosCounting;
+    long nanosEvaluating;
+
+    CrossValidation(int folds, int threads, Vocabulary stopwords, int hashBits, int ngrams, int gramMinCount) {
+        if(folds < 2) throw new IllegalArgumentException("cross-validation needs at least 2 folds: " + folds);
+        this.folds = folds;
+        this.threads = threads;
+        this.stopwords = stopwords;
+        this.hashBits = hashBits;
+        this.ngrams = ngrams;
+        this.gramMinCount = gramMinCount;
+        correct = new int[folds];
+        labelled = new int[folds];
+        for(int f = 0; f < folds; f++) foldCounts.add(new TreeMap<>());
+    }
+
+    public void run(File file) throws IOException {
+        long started = System.nanoTime();
+        count(file);
+        nanosCounting = System.nanoTime() - started;
+
+        started = System.nanoTime();
+        evaluate();
+        nanosEvaluating = System.nanoTime() - started;
+    }
+
+    // read file once, counting each document in its fold and in the total
+    private void count(File file) throws IOException {
+        // only used to give words their ids, which every fold shares
+        Model ids = new Model(stopwords, hashBits);
+        ids.ngrams = ngrams;
+        CorpusReader.read(file, stopwords, doc -> {
+            int fold = documentIds.size() % folds;
+            Category foldCategory = foldCounts.get(fold).computeIfAbsent(doc.label, Category::new);
+            Category totalCategory = totalCounts.computeIfAbsent(doc.label, Category::new);
+            foldCategory.documents++;
+            totalCategory.documents++;
+
+            int count = ids.featureIds(doc, true);
+            int[] docIds = Arrays.copyOf(doc.ids, count);
+            for(int id : docIds){
+                foldCategory.addWord(id);
+                totalCategory.addWord(id);
+            }
+            documentIds.add(docIds);
+            documentLabels.add(doc.label);
+        });
+        vocab = ids.vocab;
+        if(documentIds.isEmpty()) throw new IOException("No documents in " + file);
+
+        labels = new int[totalCounts.size()];
+        int i = 0;
+        for(int label : totalCounts.keySet()) labels[i++] = label;
+        confusion = new long[labels.length][labels.length];
+    }
+
+    // build and label every fold, up to threads at a time
+    private void evaluate() throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, folds)));
+        try {
+            List<Future<long[][]>> results = new ArrayList<>();
+            for(int f = 0; f < folds; f++){
+                int fold = f;
+                results.add(pool.submit(() -> evaluateFold(fold)));
+            }
+            for(Future<long[][]> result : results){
+                long[][] foldConfusion = result.get();
+                for(int actual = 0; actual < labels.length; actual++){
+                    for(int guessed = 0; guessed < labels.length; guessed++){
+                        confusion[actual][guessed] += foldConfusion[actual][guessed];
+                    }
+                }
+            }
+        } catch (InterruptedException | ExecutionException exception) {
+            throw new IOException("Cross-validation failed", exception);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // the confusion matrix of fold f, labelled by the model of the others
+    private long[][] evaluateFold(int fold){
+        int rows = hashBits > 0 ? 1 << hashBits : vocab.size();
+        boolean[] pruned = prunedGrams(foldCounts.get(fold), rows);
+        Model model = foldModel(fold, pruned);
+        long[][] foldConfusion = new long[labels.length][labels.length];
+        for(int d = fold; d < documentIds.size(); d += folds){
+            int[] ids = withoutPruned(documentIds.get(d), pruned);
+            int label = documentLabels.get(d);
+            int guessed = model.mostProbableLabel(model.scoreDocument(ids));
+            foldConfusion[Arrays.binarySearch(labels, label)][Arrays.binarySearch(labels, guessed)]++;
+            labelled[fold]++;
+            if(guessed == label) correct[fold]++;
+        }
+        return foldConfusion;
+    }
+
+    // the total counts less those of fold, without the pruned ids. Words only
+    // fold has are left with all zero counts, which score the same as words
+    // the model never saw, and are kept out of the vocab size
+    Model foldModel(int fold, boolean[] pruned){
+        Model model = new Model(stopwords, hashBits);
+        model.ngrams = ngrams;
+        model.vocab = vocab;
+        TreeMap<Integer, Category> held = foldCounts.get(fold);
+        int rows = model.rows();
+        boolean[] counted = new boolean[rows];
+        for(Category total : totalCounts.values()){
+            Category heldOut = held.get(total.classNumber);
+            Category category = model.category(total.classNumber);
+            category.documents = total.documents - (heldOut == null ? 0 : heldOut.documents);
+            for(int id = 0; id < rows; id++){
+                int count = total.count(id) - (heldOut == null ? 0 : heldOut.count(id));
+                if(count == 0 || pruned[id]) continue;
+                category.addWord(id, count);
+                counted[id] = true;
+            }
+        }
+
+        if(hashBits == 0){
+            int countedWords = 0;
+            for(boolean isCounted : counted) if(isCounted) countedWords++;
+            model.countedWords = countedWords;
+        }
+        model.optimize();
+        return model;
+    }
+
+    // the ids of ids that are not pruned, in order
+    private static int[] withoutPruned(int[] ids, boolean[] pruned){
+        int kept = 0;
+        for(int id : ids){
+            if(!pruned[id]) kept++;
+        }
+        if(kept == ids.length) return ids;
+        int[] keptIds = new int[kept];
+        kept = 0;
+        for(int id : ids){
+            if(!pruned[id]) keptIds[kept++] = id;
+        }
+        return keptIds;
+    }
+
+    // the n-grams of vocab counted outside held, but fewer than gramMinCount
+    // times. Those not counted at all are unseen, as in a model trained on
+    // the other folds alone. Hashed buckets are never pruned
+    private boolean[] prunedGrams(TreeMap<Integer, Category> held, int rows){
+        boolean[] pruned = new boolean[rows];
+        if(ngrams < 2 || gramMinCount < 2 || hashBits > 0) return pruned;
+        long[] counts = new long[rows];
+        for(Category total : totalCounts.values()){
+            Category heldOut = held.get(total.classNumber);
+            for(int id = 0; id < rows; id++){
+                counts[id] += total.count(id) - (heldOut == null ? 0 : heldOut.count(id));
+            }
+        }
+        for(int id = 0; id < rows; id++){
+            pruned[id] = counts[id] > 0 && counts[id] < gramMinCount && NGrams.isGram(vocab, id);
+        }
+        return pruned;
+    }
+
+    public double accuracy(int fold){
+        return labelled[fold] == 0 ? 0 : (double) correct[fold] / labelled[fold];
+    }
+
+    public double accuracy(){
+        int right = 0;
+        int all = 0;
+        for(int f = 0; f < folds; f++){
+            right += correct[f];
+            all += labelled[f];
+        }
+        return all == 0 ? 0 : (double) right / all;
+    }
+
+    public void print(PrintStream out){
+        DecimalFormat decFormat = new DecimalFormat("0.000");
+        for(int f = 0; f < folds; f++){
+            out.println("fold " + (f + 1) + ": " + decFormat.format(accuracy(f)) + " (" + correct[f] + "/" + labelled[f] + ")");
+        }
+
+        // mean and standard deviation over folds
+        double mean = 0;
+        for(int f = 0; f < folds; f++) mean += accuracy(f) / folds;
+        double variance = 0;
+        for(int f = 0; f < folds; f++) variance += (accuracy(f) - mean) * (accuracy(f) - mean) / (folds - 1);
+        out.println(decFormat.format(accuracy()) + " (cross-validation, " + folds + " folds, fold mean "
+                + decFormat.format(mean) + " +/- " + decFormat.format(Math.sqrt(variance)) + ")");
+
+        // rows are the actual labels, columns the guessed ones
+        out.println("confusion matrix (rows actual, columns guessed):");
+        int width = 5;
+        StringBuilder line = new StringBuilder(pad("", width));
+        for(int label : labels) line.append(pad(Integer.toString(label), width));
+        out.println(line);
+        for(int actual = 0; actual < labels.length; actual++){
+            line.setLength(0);
+            line.append(pad(Integer.toString(labels[actual]), width));
+            for(int guessed = 0; guessed < labels.length; guessed++) line.append(pad(Long.toString(confusion[actual][guessed]), width));
+            out.println(line);
+        }
+
+        out.println(decFormat.format(nanosCounting / 1e9) + " seconds (counting)");
+        out.println(decFormat.format(nanosEvaluating / 1e9) + " seconds (building and labeling " + folds + " folds)");
+        out.println(decFormat.format(documentIds.size() * 1e9 / Math.max(1, nanosEvaluating)) + " documents/second (labeling)");
+    }
+
+    private static String pad(String text, int width){
+        StringBuilder padded = new StringBuilder(width);
+        for(int i = text.length(); i < width; i++) padded.append(' ');
+        return padded.append(text).toString();
+    }
+}
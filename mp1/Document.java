@@ -1,6 +1,12 @@
 import java.io.*;
-import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Supplier;
 
 
 // This class will represent a document category in the form of a 'bag of words'.
@@ -11,67 +17,182 @@ class Category{
         this.classNumber = label;
     }
 
-    // map the word to its number of occurrences
-    ArrayList<String> words = new ArrayList<>();
-    Set<String> vocab = new HashSet<>();
+    // added to every word count so unseen words never get probability 0
+    static final double SMOOTHING = .2;
+    static final double LOG_SMOOTHING = Math.log(SMOOTHING);
+
+    // map the word id to its number of occurrences
+    int[] wordCounts = new int[1024];
+    // running total of words seen in this category
+    int totalWords = 0;
+    // number of word ids with a non-zero count
+    int distinctWords = 0;
+    // training documents with this label, for P(c)
+    int documents = 0;
     int classNumber;
-    Map<String, Double> wordProbs = new HashMap<>();
+    // this category's column in the Model tables
+    int index;
 
-    public double getProb(String word){
-        // if word isn't in vocab, return 0
-        if(!vocab.contains(word)) return probWordGivenClass(word);
+    // count one occurrence of the word with this id
+    public void addWord(int id){
+        addWord(id, 1);
+    }
 
-        return wordProbs.get(word);
+    // count n occurrences of the word with this id
+    public void addWord(int id, int n){
+        if(id >= wordCounts.length) wordCounts = Arrays.copyOf(wordCounts, Math.max(id + 1, wordCounts.length * 2));
+        if(wordCounts[id] == 0) distinctWords++;
+        wordCounts[id] += n;
+        totalWords += n;
     }
 
-    public void calculateWordProbabilities(){
-        for (String word : vocab){
-            double wordProb = probWordGivenClass(word);
-            wordProbs.put(word, wordProb);
-        }
+    // drop every occurrence of the word from the counts
+    public void removeWord(int id){
+        if(count(id) == 0) return;
+        totalWords -= wordCounts[id];
+        wordCounts[id] = 0;
+        distinctWords--;
     }
 
-    public double probWordGivenClass(String word){
-        double prob = (Collections.frequency(words, word) + .2) / (words.size() + Model.vocab.size());
-        //System.out.println("Model.vocab.size: "+ Model.vocab.size());
-        return prob;
+    public int count(int id){
+        return id < wordCounts.length ? wordCounts[id] : 0;
     }
 
-    // remove the most frequent word from vocab and words
-    public void removeMostFrequent(){
-        double max = Collections.max(wordProbs.values());
-        String toRemove = "";
-        for(String string : wordProbs.keySet()){
-            if(wordProbs.get(string) == max) toRemove = string;
+    // keep only the counts of the ids in kept, ascending, which become ids
+    // 0, 1, 2, ... in that order
+    public void keepOnly(int[] kept){
+        int[] keptCounts = new int[Math.max(1, kept.length)];
+        totalWords = 0;
+        distinctWords = 0;
+        for(int i = 0; i < kept.length; i++){
+            keptCounts[i] = count(kept[i]);
+            totalWords += keptCounts[i];
+            if(keptCounts[i] > 0) distinctWords++;
         }
-        wordProbs.remove(toRemove);
-        vocab.remove(toRemove);
+        wordCounts = keptCounts;
+    }
+
+    // P(w|c) with the smoothing added in, vocabSize is the size of Model.vocab
+    public double probWordGivenClass(int id, int vocabSize){
+        return (count(id) + SMOOTHING) / (totalWords + vocabSize);
     }
 }
 
 // Represents the Model for program
 class Model {
 
-    // initialize labels 1-15
+    // an empty model, with the stop words in stopwords.txt on the classpath.
+    // Labels are added as training documents bring them in
     Model() {
-        for (int i = 1; i <= 15; i++){ documentMap.put(i, new ArrayList<>()); }
+        this(defaultStopwords());
+    }
 
-        // build list of stopwords from stopwords.txt (found on google)
-        buildStopwordList();
+    // an empty model leaving out the given stop words
+    Model(Vocabulary stopwordSet) {
+        this(stopwordSet, 0);
     }
 
-    // a list of stop words created from stopwords.txt
-    ArrayList<String> stopwords = new ArrayList<>();
+    // same as above, hashing words into 2^hashBits buckets if hashBits > 0
+    Model(Vocabulary stopwordSet, int hashBits) {
+        this.stopwordSet = stopwordSet;
+        this.hashBits = hashBits;
+    }
 
-    // each label will have a concatenation of all its documents
-    Map<Integer, ArrayList<String>> documentMap = new HashMap<>();
+    // stop words, hashed so checking a token is one lookup. CorpusReader drops
+    // them while tokenizing, so they are never counted or scored
+    Vocabulary stopwordSet;
+
+    // one Category per label, categories.get(i).index == i. optimize() sorts
+    // them by label, update() adds labels it has not seen at the end
+    List<Category> categories = new ArrayList<>();
 
     // map label to it's Category
     Map<Integer, Category> categoryMap = new HashMap<>();
 
-    // vocabulary of all words seen in training set
-    static Set<String> vocab = new HashSet<>();
+    // columns in the tables below, one per class, and the label of each column.
+    // Set by optimize(), classes == categories.size() from then on
+    int classes = 0;
+    int[] labels = new int[0];
+
+    // vocabulary of all words seen in training set, word -> dense id. Each
+    // model has its own, so ids mean nothing outside it
+    Vocabulary vocab = new Vocabulary();
+
+    // if > 0, a word's id is its hash masked to hashBits bits and vocab stays
+    // empty, 0 uses the exact vocab
+    final int hashBits;
+
+    // longest word n-gram counted as a feature along with the words, see
+    // NGrams. 1 counts words only. Set before the first document is counted
+    int ngrams = 1;
+
+    // buckets with a non-zero count, stands in for the vocab size when hashing
+    int usedBuckets = 0;
+
+    // words of vocab with a non-zero count, for a model trained on part of
+    // the words in vocab, such as a CrossValidation fold. -1 when every word
+    // in vocab was counted
+    int countedWords = -1;
+
+    // log(count + SMOOTHING) by word, then class: logCounts.get(id * classes + index).
+    // An array, or the mapped model file after ModelFile.load
+    DoubleBuffer logCounts = DoubleBuffer.allocate(0);
+
+    // sparse alternative to logCounts, see PostingTable. When set, logCounts
+    // is left empty and every read and write of a log count goes here
+    PostingTable postings;
+
+    // compact copy of the log counts that replaces logCounts and postings,
+    // see quantize() and QuantizedTable
+    QuantizedTable quantized;
+
+    // lay the model out as a PostingTable instead of the dense logCounts
+    // when optimize() runs, for models with many classes
+    boolean sparse = false;
+
+    // keep logCounts and vocab in direct memory, out of the GC's way. optimize()
+    // then lets go of the categories' word counts
+    boolean offHeap = false;
+
+    // false once the categories' word counts no longer match the tables, and
+    // optimize() cannot run again
+    boolean hasWordCounts = true;
+
+    // score array tables through the DoubleBuffer instead of ScoringKernel's
+    // array kernel, for comparing the two
+    boolean scalarScoring = false;
+
+    // when set, optimize() keeps only the words it selects and moves the
+    // rest from vocab to dropped. Exact vocab only, hashed buckets have no
+    // words to drop
+    FeatureSelection selection;
+
+    // words feature selection left out, null if none. featureIds drops them
+    // from documents rather than scoring them as unseen
+    Vocabulary dropped;
+
+    // id of a dropped word, never seen by the tables
+    static final int SKIPPED = -2;
 
+    // log(totalWords + vocab size) for each class, by index, so
+    // log P(w|c) = logCounts(w, c) - logNormalizers[c]
+    double[] logNormalizers = new double[0];
+
+    // log P(c) by index, from the share of training documents with the label
+    double[] logPriors = new double[0];
+
+    // update() holds the write lock, scoring reads optimistically, see consistentRead
+    final StampedLock lock = new StampedLock();
+
+    // changes whenever the tables do, so results cached for one version are
+    // never used for another, see ResultCache. Drawn from VERSIONS, so no
+    // two models ever have the same version and they can share a cache
+    volatile long version = nextVersion();
+    private static final AtomicLong VERSIONS = new AtomicLong();
+
+    private static long nextVersion(){
+        return VERSIONS.incrementAndGet();
+    }
 
 
     // return the label of the most probable class given list of words
@@ -80,106 +201,689 @@ class Model {
     public int guessClassLabel(ArrayList<String> doc){
 
         // remove stop words from test doc
-        doc = trimDocument(doc);
-
-        // cut out half of doc to improve speed
-        // note the accuracy decreases as the list is shrinked
-        // dividing in half will allow for completion in ~13 min with accuracy ~0.8
-        doc.subList((doc.size()/3), doc.size()-1).clear();
-
-        int mostProbableLabel = 1;
-        double currentHighestProb = probClassGivenDoc(doc, 1);
-        for (int i = 1; i <= 15; i++){
-            double prob = probClassGivenDoc(doc, i);
-            if (prob > currentHighestProb){
-                currentHighestProb = prob;
-                mostProbableLabel = i;
+        ArrayList<String> trimmed = trimDocument(doc);
+
+        return mostProbableLabel(consistentRead(() -> scoreDocument(wordIds(trimmed))));
+    }
+
+    // return the most probable label of a document read by CorpusReader
+    public int guessClassLabel(CorpusReader.Document doc){
+        return mostProbableLabel(scoreDocument(doc));
+    }
+
+    // scores of a document read by CorpusReader, scores[index] for the class
+    // with label labels[index]
+    public double[] scoreDocument(CorpusReader.Document doc){
+        return consistentRead(() -> {
+            int count = wordIds(doc);
+            return scoreDocument(doc.ids, count);
+        });
+    }
+
+    // scores of several documents against the same snapshot of the model
+    public double[][] scoreDocuments(List<CorpusReader.Document> docs){
+        return consistentRead(() -> {
+            double[][] scores = new double[docs.size()][];
+            for(int i = 0; i < scores.length; i++){
+                CorpusReader.Document doc = docs.get(i);
+                int count = wordIds(doc);
+                scores[i] = scoreDocument(doc.ids, count);
+            }
+            return scores;
+        });
+    }
+
+    // run reader against a consistent snapshot of the model. It first runs
+    // without locking, and only runs again under the read lock if an update()
+    // happened at the same time, so readers never wait unless they collide
+    private <T> T consistentRead(Supplier<T> reader){
+        long stamp = lock.tryOptimisticRead();
+        if(stamp != 0){
+            try {
+                T result = reader.get();
+                if(lock.validate(stamp)) return result;
+            } catch (RuntimeException tornRead) {
+                // update() resized a table halfway through, retry below
             }
         }
 
-        return mostProbableLabel;
+        stamp = lock.readLock();
+        try {
+            return reader.get();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // log P(d|c) + log P(c) for every class in one pass over the words,
+    // scores[index]. Callers that may race with update() go through
+    // consistentRead
+    public double[] scoreDocument(int[] ids){
+        return scoreDocument(ids, ids.length);
+    }
+
+    // same as above for the first count ids
+    public double[] scoreDocument(int[] ids, int count){
+        PostingTable postings = this.postings;
+        if(postings != null) return scorePostings(postings, ids, count);
+
+        QuantizedTable quantized = this.quantized;
+        DoubleBuffer logCounts = this.logCounts;
+        int classes = this.classes;
+        double[] scores = Arrays.copyOf(logPriors, classes);
+
+        // add each word's row of log counts into the scores
+        int unseen;
+        if(quantized != null){
+            unseen = quantized.addRows(ids, count, scores);
+        } else if(logCounts.hasArray() && !scalarScoring){
+            unseen = ScoringKernel.addRows(logCounts.array(), logCounts.arrayOffset(), ids, count, classes, scores);
+        } else {
+            unseen = ScoringKernel.addRows(logCounts, ids, count, classes, scores);
+        }
+
+        // unseen words have a count of 0, and every word divides by the
+        // class's normalizer
+        for(int i = 0; i < classes; i++){
+            scores[i] += unseen * Category.LOG_SMOOTHING - count * logNormalizers[i];
+        }
+
+        return scores;
+    }
+
+    // scoreDocument for a sparse model. Every class starts as if none of the
+    // words had been seen in it, then each seen word adds its postings
+    private double[] scorePostings(PostingTable postings, int[] ids, int count){
+        int classes = this.classes;
+        double[] scores = new double[classes];
+        for(int i = 0; i < classes; i++){
+            scores[i] = logPriors[i] + (count * Category.LOG_SMOOTHING - count * logNormalizers[i]);
+        }
+        for(int j = 0; j < count; j++){
+            if(ids[j] >= 0) postings.addDeltas(ids[j], scores);
+        }
+        return scores;
+    }
+
+    // label with the highest of scores[index], ties go to the lower index,
+    // which is the lower label for every label seen before optimize()
+    public int mostProbableLabel(double[] scores){
+        int best = 0;
+        for(int i = 1; i < scores.length; i++){
+            if(scores[i] > scores[best]) best = i;
+        }
+        return labels[best];
+    }
+
+    // the k most probable labels of a document read by CorpusReader, best
+    // first, the same as ranking the scores of scoreDocument
+    public int[] topLabels(CorpusReader.Document doc, int k){
+        return consistentRead(() -> {
+            int count = wordIds(doc);
+            return topLabels(doc.ids, count, k);
+        });
     }
 
-    // P(c|d)
-    // = P(d|c)P(c)
-    public double probClassGivenDoc(ArrayList<String> doc, int label){
-        double prob = probDocGivenClass(doc, label) * probClass();
-        return prob;
+    // same as above for the first count ids. Callers that may race with
+    // update() go through consistentRead
+    public int[] topLabels(int[] ids, int count, int k){
+        if(k < 1) throw new IllegalArgumentException("k must be at least 1: " + k);
+        int[] ranking = new int[Math.min(k, classes)];
+        rankClasses(scoreDocument(ids, count), ranking);
+        int[] top = new int[ranking.length];
+        for(int r = 0; r < top.length; r++) top[r] = labels[ranking[r]];
+        return top;
     }
 
-    // P(d|c)
-    // = P(w1|c)P(w2|c)....P(wn|c)
-    public double probDocGivenClass(ArrayList<String> doc, int label) {
+    // fill ranking with the indexes of the ranking.length highest scores, best
+    // first, ties going to the lower index as in mostProbableLabel
+    static void rankClasses(double[] scores, int[] ranking){
+        int ranked = 0;
+        for(int i = 0; i < scores.length; i++){
+            int r = Math.min(ranked, ranking.length - 1);
+            if(ranked == ranking.length && scores[i] <= scores[ranking[r]]) continue;
+            while(r > 0 && scores[i] > scores[ranking[r - 1]]){
+                ranking[r] = ranking[r - 1];
+                r--;
+            }
+            ranking[r] = i;
+            if(ranked < ranking.length) ranked++;
+        }
+    }
+
+    // log P(c|d) up to a constant
+    // = log P(d|c) + log P(c)
+    public double probClassGivenDoc(int[] ids, int label){
+        return probDocGivenClass(ids, label) + logPriors[categoryMap.get(label).index];
+    }
+
+    // log P(d|c)
+    // = log P(w1|c) + log P(w2|c) + ... + log P(wn|c)
+    public double probDocGivenClass(int[] ids, int label) {
         double currentProb = 0.0;
-        for(String word : doc){
-            currentProb += Math.log(probWordGivenClass(label, word)) / Math.log(10.0);
+        for(int id : ids){
+            currentProb += logProbWordGivenClass(label, id);
         }
 
         return currentProb;
     }
 
-    // P(c)
-    public double probClass(){
-        return 1.0/15.0;
+    // P(c), the share of training documents with the label
+    public double probClass(int label){
+        int documents = 0;
+        for(Category category : categories) documents += category.documents;
+        return (double) categoryMap.get(label).documents / documents;
+    }
+
+    // log P(w|c), id is below 0 for words not in vocab
+    public double logProbWordGivenClass(int label, int id){
+        int i = categoryMap.get(label).index;
+        double logCount = id < 0 ? Category.LOG_SMOOTHING : logCount(id, i);
+        return logCount - logNormalizers[i];
+    }
+
+    // log(count + SMOOTHING) of word id in class index i, from whichever
+    // table the model is laid out in
+    double logCount(int id, int i){
+        if(quantized != null) return quantized.logCount(id, i);
+        return postings != null ? postings.logCount(id, i) : logCounts.get(id * classes + i);
     }
 
     // P(w|c)
     public double probWordGivenClass(int label, String word){
-        return categoryMap.get(label).getProb(word);
+        return Math.exp(logProbWordGivenClass(label, wordId(word, false)));
     }
 
-    // put words in stopwords.txt into ArrayList
-    private void buildStopwordList(){
-        URL url = getClass().getResource("stopwords.txt");
-        File file = new File(url.getPath());
-        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                stopwords.add(line);
-            }
+    // map each word to its vocab id, -1 when unseen, followed by the ids of
+    // their n-grams
+    public int[] wordIds(List<String> words){
+        return featureIds(words, false);
+    }
+
+    // put the ids of doc's tokens and n-grams into doc.ids, which may be
+    // replaced by a larger array, and return how many there are
+    public int wordIds(CorpusReader.Document doc){
+        return featureIds(doc, false);
+    }
+
+    // same as above, if add is true giving new words and n-grams ids
+    int featureIds(CorpusReader.Document doc, boolean add){
+        for(int i = 0; i < doc.count; i++){
+            doc.ids[i] = wordId(doc, i, add);
+        }
+        int count = doc.count;
+        if(ngrams > 1){
+            doc.ensureIds(doc.count + NGrams.count(doc.count, ngrams));
+            count = NGrams.ids(doc.hashes, doc.count, ngrams, vocab, dropped, hashBits, doc.key, add, doc.ids, doc.count);
+        }
+        return dropped == null ? count : withoutSkipped(doc.ids, count);
+    }
+
+    // same as above for words given as Strings, with stop words already dropped
+    int[] featureIds(List<String> words, boolean add){
+        int count = words.size();
+        int[] ids = new int[count + NGrams.count(count, ngrams)];
+        int[] hashes = new int[count];
+        for(int i = 0; i < count; i++){
+            byte[] bytes = words.get(i).getBytes(StandardCharsets.UTF_8);
+            hashes[i] = Vocabulary.hash(ByteBuffer.wrap(bytes), 0, bytes.length);
+            ids[i] = wordId(words.get(i), add);
+        }
+        if(ngrams > 1) NGrams.ids(hashes, count, ngrams, vocab, dropped, hashBits, ByteBuffer.allocate(NGrams.KEY_BYTES), add, ids, count);
+        return dropped == null ? ids : Arrays.copyOf(ids, withoutSkipped(ids, ids.length));
+    }
+
+    // move the ids that are not SKIPPED to the front of the first count ids,
+    // in order, and return how many there are
+    static int withoutSkipped(int[] ids, int count){
+        int kept = 0;
+        for(int j = 0; j < count; j++){
+            if(ids[j] != SKIPPED) ids[kept++] = ids[j];
+        }
+        return kept;
+    }
+
+    // id of word, its hash bucket when hashing. If add is false, words not in
+    // vocab are -1 instead of being added. Dropped words are SKIPPED
+    int wordId(String word, boolean add){
+        if(hashBits > 0){
+            byte[] bytes = word.getBytes(StandardCharsets.UTF_8);
+            return Vocabulary.hash(ByteBuffer.wrap(bytes), 0, bytes.length) & ((1 << hashBits) - 1);
+        }
+        if(dropped == null) return add ? vocab.add(word) : vocab.id(word);
+        int id = vocab.id(word);
+        if(id >= 0) return id;
+        if(dropped.id(word) >= 0) return SKIPPED;
+        return add ? vocab.add(word) : -1;
+    }
+
+    // same as above for token i of doc
+    int wordId(CorpusReader.Document doc, int i, boolean add){
+        if(hashBits > 0) return doc.hashes[i] & ((1 << hashBits) - 1);
+        if(dropped == null){
+            if(add) return vocab.add(doc.buf, doc.starts[i], doc.lengths[i], doc.hashes[i]);
+            return vocab.id(doc.buf, doc.starts[i], doc.lengths[i], doc.hashes[i]);
+        }
+        int id = vocab.id(doc.buf, doc.starts[i], doc.lengths[i], doc.hashes[i]);
+        if(id >= 0) return id;
+        if(dropped.id(doc.buf, doc.starts[i], doc.lengths[i], doc.hashes[i]) >= 0) return SKIPPED;
+        return add ? vocab.add(doc.buf, doc.starts[i], doc.lengths[i], doc.hashes[i]) : -1;
+    }
+
+    // rows in the log count table, one per word id
+    public int rows(){
+        return hashBits > 0 ? 1 << hashBits : vocab.size();
+    }
+
+    // number of distinct words, as used to smooth P(w|c)
+    public int vocabSize(){
+        if(hashBits > 0) return usedBuckets;
+        return countedWords >= 0 ? countedWords : vocab.size();
+    }
+
+    // bytes held by the tables used for scoring
+    public long memoryBytes(){
+        long table = quantized != null ? quantized.memoryBytes()
+                : postings != null ? postings.memoryBytes() : 8L * logCounts.capacity();
+        return table + (hashBits > 0 ? 0 : vocab.memoryBytes()) + (dropped == null ? 0 : dropped.memoryBytes())
+                + stopwordSet.memoryBytes();
+    }
+
+    // stop words from stopwords.txt (found on google), read from the classpath
+    // so it also works from inside the jar
+    static Vocabulary defaultStopwords(){
+        try (InputStream in = Model.class.getResourceAsStream("stopwords.txt")) {
+            if (in == null) throw new FileNotFoundException("stopwords.txt not on the classpath");
+            return readStopwords(in);
         } catch (IOException ioException) {
-            System.err.println("Cannot open training file");
+            System.err.println("Cannot open stopwords: " + ioException.getMessage());
             System.exit(1);
+            return null;
+        }
+    }
+
+    // stop words from a file with one word per line
+    static Vocabulary readStopwords(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            return readStopwords(in);
+        }
+    }
+
+    private static Vocabulary readStopwords(InputStream in) throws IOException {
+        Vocabulary stopwords = new Vocabulary();
+        BufferedReader br = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        String line;
+        while ((line = br.readLine()) != null) {
+            line = line.trim();
+            if (!line.isEmpty()) stopwords.add(line);
+        }
+        return stopwords;
+    }
+
+    // count the words of one training document under its label
+    public void addDocument(int label, String[] words){
+        Category category = category(label);
+        category.documents++;
+        List<String> kept = new ArrayList<>(words.length);
+        for(String word : words){
+            if(!isStopword(word)) kept.add(word);
+        }
+
+        // add any new words into vocab
+        for(int id : featureIds(kept, true)) category.addWord(id);
+    }
+
+    // count the words of one training document read by CorpusReader
+    public void addDocument(CorpusReader.Document doc){
+        Category category = category(doc.label);
+        category.documents++;
+        int count = featureIds(doc, true);
+        for(int i = 0; i < count; i++){
+            category.addWord(doc.ids[i]);
         }
     }
 
-    // remove stopwords from all the documents
-    public void trimDocuments(){
-        for(int i = 1; i <= 15; i++){
-            ArrayList<String> trimmedDoc = documentMap.get(i);
-            trimmedDoc.removeAll(stopwords);
-            documentMap.replace(i, trimmedDoc);
+    // the Category of label, adding one after the others if it is new
+    Category category(int label){
+        Category category = categoryMap.get(label);
+        if(category == null){
+            category = new Category(label);
+            category.index = categories.size();
+            categories.add(category);
+            categoryMap.put(label, category);
+        }
+        return category;
+    }
+
+    // add the counts of a shard trained on a later chunk of the file.
+    // Walking the shard's ids in order hands out global ids in the same
+    // order a single thread reading the whole file would have
+    public void merge(TrainingShard shard){
+        Category[] merged = new Category[shard.categories.size()];
+        for(int i = 0; i < merged.length; i++){
+            merged[i] = category(shard.categories.get(i).classNumber);
+            merged[i].documents += shard.categories.get(i).documents;
+        }
+
+        if(hashBits > 0){
+            // shards count straight into buckets, which are the same everywhere
+            for(int i = 0; i < merged.length; i++){
+                Category counts = shard.categories.get(i);
+                for(int id = 0; id < counts.wordCounts.length; id++){
+                    if(counts.wordCounts[id] > 0) merged[i].addWord(id, counts.wordCounts[id]);
+                }
+            }
+            return;
+        }
+
+        for(int localId = 0; localId < shard.vocab.size(); localId++){
+            int id = vocab.add(shard.vocab, localId);
+            for(int i = 0; i < merged.length; i++){
+                int count = shard.categories.get(i).count(localId);
+                if(count > 0) merged[i].addWord(id, count);
+            }
         }
     }
 
+    public boolean isStopword(String word){
+        return stopwordSet.id(word) >= 0;
+    }
+
+    // remove stop words from a document given as Strings, one lookup per word
     public ArrayList<String> trimDocument(ArrayList<String> words){
-        words.removeAll(stopwords);
+        words.removeIf(this::isStopword);
         return words;
     }
 
+    // lay out the tables for scoring, one column per label seen in training,
+    // in label order
     public void optimize(){
-        trimDocuments();
-
-        // precalculate prob for each word in each document
-        for(int i = 1; i <=15; i++){
-            Category category = new Category(i);
-            category.words = documentMap.get(i);
-            category.vocab.addAll(documentMap.get(i));
-            category.calculateWordProbabilities();
-
-            // remove some of the most frequent words
-            // handle case where there aren't enough words
-            if(category.vocab.size()>20) {
-                category.removeMostFrequent();
-                category.removeMostFrequent();
-                category.removeMostFrequent();
-                category.removeMostFrequent();
-                category.removeMostFrequent();
-                category.removeMostFrequent();
+        // every label comes from a training document, a model without any
+        // could never name a label
+        if(categories.isEmpty()) throw new IllegalStateException("no training documents");
+        if(!hasWordCounts) throw new IllegalStateException("the word counts are gone, the tables cannot be laid out again");
+        categories.sort(Comparator.comparingInt(category -> category.classNumber));
+        classes = categories.size();
+        labels = new int[classes];
+        for(int i = 0; i < classes; i++){
+            categories.get(i).index = i;
+            labels[i] = categories.get(i).classNumber;
+        }
+
+        if(selection != null && hashBits == 0) selectFeatures();
+
+        int rows = rows();
+        if(hashBits > 0){
+            usedBuckets = 0;
+            for(int id = 0; id < rows; id++){
+                for(Category category : categories){
+                    if(category.count(id) > 0){
+                        usedBuckets++;
+                        break;
+                    }
+                }
+            }
+        }
+
+        if(sparse){
+            postings = PostingTable.fromCounts(categories, rows);
+            this.logCounts = DoubleBuffer.allocate(0);
+        } else {
+            if((long) rows * classes > Integer.MAX_VALUE){
+                throw new IllegalStateException(rows + " words by " + classes + " classes is too large a table");
+            }
+
+            // precalculate log count for each word in each category. With many
+            // classes most counts are 0, which need no log
+            DoubleBuffer logCounts = newTable(rows * classes);
+            for(int n = 0; n < rows * classes; n++){
+                logCounts.put(n, Category.LOG_SMOOTHING);
+            }
+            for(Category category : categories){
+                for(int id = 0; id < rows; id++){
+                    int count = category.count(id);
+                    if(count > 0) logCounts.put(id * classes + category.index, Math.log(count + Category.SMOOTHING));
+                }
+            }
+            this.logCounts = logCounts;
+            postings = null;
+        }
+        logNormalizers = new double[classes];
+        logPriors = new double[classes];
+        updateNormalizers();
+        updatePriors();
+        version = nextVersion();
+
+        if(offHeap){
+            for(Category category : categories) category.wordCounts = new int[0];
+            hasWordCounts = false;
+            if(hashBits == 0) vocab = vocab.copy(true);
+            if(dropped != null) dropped = dropped.copy(true);
+        }
+    }
+
+    // move a trained dense model, such as one from ModelFile.load, to direct
+    // memory as optimize() does with offHeap. A mapped table is already
+    // outside the heap and stays where it is until update() copies it
+    public void useOffHeap(){
+        long stamp = lock.writeLock();
+        try {
+            offHeap = true;
+            if(postings == null && !logCounts.isDirect()){
+                DoubleBuffer table = newTable(logCounts.capacity());
+                DoubleBuffer old = logCounts.duplicate();
+                old.clear();
+                table.put(old);
+                table.clear();
+                logCounts = table;
+            }
+            if(hashBits == 0) vocab = vocab.copy(true);
+            if(dropped != null) dropped = dropped.copy(true);
+            version = nextVersion();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // a table of size doubles, on the heap, or in direct memory if offHeap
+    private DoubleBuffer newTable(int size){
+        if(!offHeap) return DoubleBuffer.wrap(new double[size]);
+        if(size > Integer.MAX_VALUE / 8) throw new IllegalStateException(size + " entries is too large for a direct buffer");
+        return ByteBuffer.allocateDirect(8 * size).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+    }
+
+    // cut vocab and the counts down to the words selection keeps, renumbered
+    // in the order they were first seen, and add the others to dropped
+    private void selectFeatures(){
+        int[] kept = selection.select(categories, rows(), id -> NGrams.isGram(vocab, id));
+        Vocabulary keptVocab = new Vocabulary();
+        if(kept.length < vocab.size() && dropped == null) dropped = new Vocabulary();
+        for(int id = 0, k = 0; id < vocab.size(); id++){
+            if(k < kept.length && kept[k] == id){
+                keptVocab.add(vocab, id);
+                k++;
+            } else {
+                dropped.add(vocab, id);
+            }
+        }
+        for(Category category : categories) category.keepOnly(kept);
+        vocab = keptVocab;
+    }
+
+    // switch a trained dense model, such as one from ModelFile.load, to a
+    // PostingTable
+    public void usePostings(){
+        if(postings != null) return;
+        long stamp = lock.writeLock();
+        try {
+            checkNotQuantized();
+            postings = PostingTable.fromLogCounts(logCounts, rows(), classes);
+            logCounts = DoubleBuffer.allocate(0);
+            sparse = true;
+            version = nextVersion();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // replace the log count tables with a QuantizedTable of format. A quantized
+    // model cannot be updated or laid out again
+    public void quantize(QuantizedTable.Format format){
+        long stamp = lock.writeLock();
+        try {
+            checkNotQuantized();
+            quantized = QuantizedTable.fromModel(this, format);
+            logCounts = DoubleBuffer.allocate(0);
+            postings = null;
+            version = nextVersion();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private void checkNotQuantized(){
+        if(quantized != null) throw new IllegalStateException("the model is quantized to " + quantized.format);
+    }
+
+    // add one labelled document to the trained model in place, in O(words +
+    // classes) unless the label is new. Safe to call while other threads classify
+    public void update(List<String> doc, int label){
+        long stamp = lock.writeLock();
+        try {
+            checkNotQuantized();
+            hasWordCounts = false;
+            Category category = updatedCategory(label);
+            List<String> kept = new ArrayList<>(doc.size());
+            for(String word : doc){
+                if(!isStopword(word)) kept.add(word);
             }
+            for(int id : featureIds(kept, true)) addWord(category, id);
+            updateNormalizers();
+            version = nextVersion();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // same as above for a document read by CorpusReader
+    public void update(CorpusReader.Document doc){
+        long stamp = lock.writeLock();
+        try {
+            checkNotQuantized();
+            hasWordCounts = false;
+            Category category = updatedCategory(doc.label);
+            int count = featureIds(doc, true);
+            for(int i = 0; i < count; i++){
+                addWord(category, doc.ids[i]);
+            }
+            updateNormalizers();
+            version = nextVersion();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // the Category of label with one more document counted, and a column
+    // added to the tables if the label is new
+    private Category updatedCategory(int label){
+        Category category = category(label);
+        if(category.index == classes) addColumn(category);
+        category.documents++;
+        updatePriors();
+        return category;
+    }
+
+    // copy the tables into ones with a column for category on the right,
+    // where every word is unseen
+    private void addColumn(Category category){
+        if(postings != null){
+            // no word has been seen in the new class, so it has no postings
+            growClasses(category);
+            return;
+        }
+
+        int rowCount = classes == 0 ? rows() : logCounts.capacity() / classes;
+        if((long) rowCount * (classes + 1) > Integer.MAX_VALUE){
+            throw new IllegalStateException(rowCount + " words by " + (classes + 1) + " classes is too large a table");
+        }
+        DoubleBuffer grown = newTable(rowCount * (classes + 1));
+        DoubleBuffer old = logCounts.duplicate();
+        old.clear();
+        for(int id = 0; id < rowCount; id++){
+            old.limit((id + 1) * classes);
+            grown.put(old);
+            grown.put(Category.LOG_SMOOTHING);
+        }
+        grown.clear();
+
+        logCounts = grown;
+        growClasses(category);
+    }
+
+    private void growClasses(Category category){
+        logNormalizers = Arrays.copyOf(logNormalizers, classes + 1);
+        logPriors = Arrays.copyOf(logPriors, classes + 1);
+        labels = Arrays.copyOf(labels, classes + 1);
+        labels[classes] = category.classNumber;
+        classes++;
+    }
+
+    // count one more occurrence of word id in category and fix its log count.
+    // The count is read back from the table, which also works for loaded
+    // models that only keep category totals
+    private void addWord(Category category, int id){
+        if(postings == null) ensureRows(id + 1);
+        if(hashBits > 0 && isEmptyRow(id)) usedBuckets++;
+        long count = Math.round(Math.exp(logCount(id, category.index)) - Category.SMOOTHING);
+        double logCount = Math.log(count + 1 + Category.SMOOTHING);
+        if(postings != null) postings.setLogCount(id, category.index, logCount);
+        else logCounts.put(id * classes + category.index, logCount);
+        // the count itself is in the table, the category only keeps the total
+        category.totalWords++;
+    }
+
+    // true if no class has counted word id yet
+    private boolean isEmptyRow(int id){
+        if(postings != null) return postings.isEmptyRow(id);
+        for(int i = 0; i < classes; i++){
+            if(logCounts.get(id * classes + i) != Category.LOG_SMOOTHING) return false;
+        }
+        return true;
+    }
+
+    private void updateNormalizers(){
+        int vocabSize = vocabSize();
+        for(Category category : categories){
+            logNormalizers[category.index] = Math.log(category.totalWords + vocabSize);
+        }
+    }
+
+    private void updatePriors(){
+        int documents = 0;
+        for(Category category : categories) documents += category.documents;
+        for(Category category : categories){
+            logPriors[category.index] = Math.log((double) category.documents / documents);
+        }
+    }
+
+    // make room for rows words in logCounts. Grows by doubling so adding
+    // words is amortized O(1), and copies a mapped table to the heap first
+    private void ensureRows(int rows){
+        if((long) rows * classes <= logCounts.capacity() && !logCounts.isReadOnly()) return;
 
-            categoryMap.put(i, category);
+        long grownRows = Math.max(rows, logCounts.capacity() / classes * 2L);
+        if(grownRows * classes > Integer.MAX_VALUE){
+            throw new IllegalStateException(grownRows + " words by " + classes + " classes is too large a table");
         }
+        int oldSize = Math.min(logCounts.capacity(), rows() * classes);
+        DoubleBuffer grown = newTable((int) grownRows * classes);
+        DoubleBuffer old = logCounts.duplicate();
+        old.clear();
+        old.limit(oldSize);
+        grown.put(old);
+        while(grown.hasRemaining()) grown.put(Category.LOG_SMOOTHING);
+        grown.clear();
+        logCounts = grown;
     }
 
 }
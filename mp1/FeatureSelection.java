@@ -0,0 +1,171 @@
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntPredicate;
+
+// Chooses which word ids a model keeps, once, from the training counts. A
+// word must be counted at least minCount times over all classes, and of the
+// words that are, the maxFeatures with the highest score are kept. Scoring
+// every word is O(V * classes) and keeping the best in a bounded heap is
+// O(V log maxFeatures), so a whole selection costs about one pass over the
+// count tables. N-grams (see NGrams) have to be counted gramMinCount times
+// as well, which keeps the many that are seen once or twice out of the model.
+class FeatureSelection {
+
+    // how a word is ranked against the others
+    enum Score {
+        // total count over all classes
+        FREQUENCY,
+        // largest chi-square statistic of the word against any one class
+        CHI_SQUARE,
+        // information gain about the class from seeing the word or not
+        INFORMATION_GAIN
+    }
+
+    // words kept, 0 keeps every word with minCount or more
+    final int maxFeatures;
+    // least total count a word needs to be kept at all
+    final int minCount;
+    // least total count an n-gram needs to be kept at all
+    final int gramMinCount;
+    final Score score;
+
+    FeatureSelection(int maxFeatures, int minCount, Score score) {
+        this(maxFeatures, minCount, score, 0);
+    }
+
+    FeatureSelection(int maxFeatures, int minCount, Score score, int gramMinCount) {
+        if(maxFeatures < 0) throw new IllegalArgumentException("maxFeatures must not be negative: " + maxFeatures);
+        this.maxFeatures = maxFeatures;
+        this.minCount = minCount;
+        this.gramMinCount = gramMinCount;
+        this.score = score;
+    }
+
+    // ids below rows to keep, none of them n-grams
+    public int[] select(List<Category> categories, int rows){
+        return select(categories, rows, id -> false);
+    }
+
+    // ids below rows to keep, in ascending order, where isGram tells the
+    // n-grams from the words. Ties go to the lower id, the word seen first
+    // in training, so the same counts always give the same selection
+    public int[] select(List<Category> categories, int rows, IntPredicate isGram){
+        // token totals, by word and overall
+        long[] wordTotals = new long[rows];
+        long total = 0;
+        for(Category category : categories){
+            for(int id = 0; id < rows; id++){
+                wordTotals[id] += category.count(id);
+            }
+            total += category.totalWords;
+        }
+
+        int capacity = maxFeatures > 0 ? maxFeatures : rows;
+        Heap heap = new Heap(Math.min(capacity, rows));
+        for(int id = 0; id < rows; id++){
+            if(wordTotals[id] == 0 || wordTotals[id] < minCount) continue;
+            if(gramMinCount > minCount && wordTotals[id] < gramMinCount && isGram.test(id)) continue;
+            double value;
+            switch(score){
+                case CHI_SQUARE: value = chiSquare(categories, id, wordTotals[id], total); break;
+                case INFORMATION_GAIN: value = informationGain(categories, id, wordTotals[id], total); break;
+                default: value = wordTotals[id];
+            }
+            heap.offer(id, value);
+        }
+
+        int[] kept = heap.ids();
+        Arrays.sort(kept);
+        return kept;
+    }
+
+    // max over classes of the chi-square of the 2x2 table of tokens that are
+    // or are not word id, in or out of the class
+    private static double chiSquare(List<Category> categories, int id, long wordTotal, long total){
+        double best = 0;
+        for(Category category : categories){
+            double a = category.count(id);
+            double b = wordTotal - a;
+            double c = category.totalWords - a;
+            double d = total - a - b - c;
+            double denominator = (a + c) * (b + d) * (a + b) * (c + d);
+            if(denominator == 0) continue;
+            double cross = a * d - b * c;
+            best = Math.max(best, total * cross / denominator * cross);
+        }
+        return best;
+    }
+
+    // H(C) - P(w) H(C | w) - P(not w) H(C | not w), over tokens. H(C) is the
+    // same for every word, so only the part after it is computed
+    private static double informationGain(List<Category> categories, int id, long wordTotal, long total){
+        long otherTotal = total - wordTotal;
+        double withWord = 0;
+        double withoutWord = 0;
+        for(Category category : categories){
+            long count = category.count(id);
+            long otherCount = category.totalWords - count;
+            if(count > 0) withWord += count * Math.log((double) count / wordTotal);
+            if(otherCount > 0) withoutWord += otherCount * Math.log((double) otherCount / otherTotal);
+        }
+        // each sum is -n H(C | .) for its n tokens
+        return (withWord + withoutWord) / total;
+    }
+
+    // min-heap of the best ids offered so far, the weakest on top, so a new
+    // id only has to beat the top to get in
+    private static class Heap {
+        private final int[] ids;
+        private final double[] values;
+        private int size = 0;
+
+        Heap(int capacity) {
+            ids = new int[capacity];
+            values = new double[capacity];
+        }
+
+        // ids are offered in ascending order, so an equal value never
+        // replaces one already in
+        void offer(int id, double value){
+            if(ids.length == 0) return;
+            if(size < ids.length){
+                int i = size++;
+                while(i > 0 && ranksBelow(value, id, values[(i - 1) / 2], ids[(i - 1) / 2])){
+                    ids[i] = ids[(i - 1) / 2];
+                    values[i] = values[(i - 1) / 2];
+                    i = (i - 1) / 2;
+                }
+                ids[i] = id;
+                values[i] = value;
+            } else if(value > values[0]){
+                siftDown(id, value);
+            }
+        }
+
+        // put id in place of the top and move it down to where it belongs
+        private void siftDown(int id, double value){
+            int i = 0;
+            while(true){
+                int child = 2 * i + 1;
+                if(child >= size) break;
+                if(child + 1 < size && ranksBelow(values[child + 1], ids[child + 1], values[child], ids[child])) child++;
+                if(!ranksBelow(values[child], ids[child], value, id)) break;
+                ids[i] = ids[child];
+                values[i] = values[child];
+                i = child;
+            }
+            ids[i] = id;
+            values[i] = value;
+        }
+
+        // true if (value, id) ranks below (otherValue, otherId): a lower
+        // value, or the same value and a later id
+        private static boolean ranksBelow(double value, int id, double otherValue, int otherId){
+            return value < otherValue || (value == otherValue && id > otherId);
+        }
+
+        int[] ids(){
+            return Arrays.copyOf(ids, size);
+        }
+    }
+}
@@ -0,0 +1,286 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+// Counters and latency histograms for the stages of training and labeling.
+// Readable over JMX (see MetricsMBean) and as JSON lines written every few
+// seconds by startDump(). Everything is off until enable(): call sites check
+// Metrics.enabled before reading the clock, so a run without -metrics pays
+// one static field read per stage and nothing else.
+class Metrics implements MetricsMBean {
+
+    static boolean enabled = false;
+
+    // time to split a line into tokens, to drop its stop words, to score it,
+    // and to write its label (a whole chunk of labels in batch mode)
+    static final Histogram PARSE = new Histogram();
+    static final Histogram STOPWORDS = new Histogram();
+    static final Histogram SCORE = new Histogram();
+    static final Histogram OUTPUT = new Histogram();
+
+    // documents labelled, their tokens after stop words, and how many of
+    // those the model had never seen
+    static final LongAdder documents = new LongAdder();
+    static final LongAdder tokens = new LongAdder();
+    static final LongAdder unknownTokens = new LongAdder();
+
+    // documents labelled with each label
+    static final Map<Integer, LongAdder> predictions = new ConcurrentHashMap<>();
+
+    // documents and nanoseconds spent training
+    static final LongAdder trainingDocuments = new LongAdder();
+    static final LongAdder trainingNanos = new LongAdder();
+
+    // size of the model being used, set along with it
+    static volatile LongSupplier modelBytes = () -> 0;
+
+    // the result cache in use, if any
+    static volatile ResultCache cache;
+
+    // turn recording on and publish the metrics over JMX
+    static void enable(){
+        enabled = true;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new Metrics(), new ObjectName("NaiveBayes:type=Metrics"));
+        } catch (JMException jmException) {
+            System.err.println("Cannot register metrics with JMX: " + jmException.getMessage());
+        }
+    }
+
+    // write a snapshot line to file ("-" for stderr) every seconds seconds
+    // from a daemon thread, and once more when dump() is called
+    static void startDump(String file, int seconds) throws IOException {
+        Writer writer = file.equals("-")
+                ? new OutputStreamWriter(System.err, StandardCharsets.UTF_8)
+                : new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8);
+        dumpOut = new PrintWriter(writer, true);
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "metrics-dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.scheduleAtFixedRate(Metrics::dump, seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    private static PrintWriter dumpOut;
+
+    static synchronized void dump(){
+        if (dumpOut != null) dumpOut.println(snapshot());
+    }
+
+    // count a document given label, and its tokens, with ids filled in by scoring
+    static void labelled(CorpusReader.Document doc, int label, long scoreNanos){
+        SCORE.record(scoreNanos);
+        documents.increment();
+        tokens.add(doc.count);
+        int unknown = 0;
+        for (int i = 0; i < doc.count; i++) {
+            if (doc.ids[i] < 0) unknown++;
+        }
+        unknownTokens.add(unknown);
+        predictions.computeIfAbsent(label, key -> new LongAdder()).increment();
+    }
+
+    static void trained(long documentCount, long nanos){
+        trainingDocuments.add(documentCount);
+        trainingNanos.add(nanos);
+    }
+
+    static String snapshot(){
+        StringBuilder json = new StringBuilder(512);
+        json.append("{\"time\":").append(System.currentTimeMillis());
+        json.append(",\"documents\":").append(documents.sum());
+        json.append(",\"tokens\":").append(tokens.sum());
+        json.append(",\"unknownTokens\":").append(unknownTokens.sum());
+        json.append(",\"trainingDocuments\":").append(trainingDocuments.sum());
+        json.append(",\"trainingDocumentsPerSecond\":").append(trainingDocumentsPerSecond());
+        json.append(",\"modelBytes\":").append(modelBytes.getAsLong());
+        json.append(",\"predictions\":{");
+        String separator = "";
+        for (Map.Entry<Integer, Long> entry : predictionCounts().entrySet()) {
+            json.append(separator).append('"').append(entry.getKey()).append("\":").append(entry.getValue());
+            separator = ",";
+        }
+        json.append('}');
+        ResultCache cache = Metrics.cache;
+        if (cache != null) {
+            json.append(",\"cache\":{\"hits\":").append(cache.hits.sum());
+            json.append(",\"misses\":").append(cache.misses.sum());
+            json.append(",\"evictions\":").append(cache.evictions.sum());
+            json.append(",\"size\":").append(cache.size()).append('}');
+        }
+        json.append(",\"latencyMicros\":{");
+        PARSE.toJson(json.append("\"parse\":"));
+        STOPWORDS.toJson(json.append(",\"stopwords\":"));
+        SCORE.toJson(json.append(",\"score\":"));
+        OUTPUT.toJson(json.append(",\"output\":"));
+        return json.append("}}").toString();
+    }
+
+    private static Map<Integer, Long> predictionCounts(){
+        Map<Integer, Long> counts = new TreeMap<>();
+        for (Map.Entry<Integer, LongAdder> entry : predictions.entrySet()) counts.put(entry.getKey(), entry.getValue().sum());
+        return counts;
+    }
+
+    private static double trainingDocumentsPerSecond(){
+        long nanos = trainingNanos.sum();
+        return nanos == 0 ? 0 : trainingDocuments.sum() * 1e9 / nanos;
+    }
+
+    // latencies in buckets of a quarter of a power of two each, which keeps
+    // every bucket within 25% of the values in it. Recording is one
+    // increment of a shared array, so any thread can record
+    static class Histogram {
+        // values under 16 ns get a bucket each, then 4 per power of two up to 2^63
+        private static final int BUCKETS = 16 + 4 * 60;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder total = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long nanos){
+            if (nanos < 0) nanos = 0;
+            counts.incrementAndGet(bucket(nanos));
+            total.add(nanos);
+            long seen = max.get();
+            while (nanos > seen && !max.compareAndSet(seen, nanos)) seen = max.get();
+        }
+
+        static int bucket(long nanos){
+            if (nanos < 16) return (int) nanos;
+            int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+            return 16 + 4 * (exponent - 4) + (int) ((nanos >>> (exponent - 2)) & 3);
+        }
+
+        // largest value that falls in bucket
+        static long upperBound(int bucket){
+            if (bucket < 16) return bucket;
+            int exponent = (bucket - 16) / 4 + 4;
+            long quarter = 1L << (exponent - 2);
+            return (1L << exponent) + ((bucket - 16) % 4 + 1) * quarter - 1;
+        }
+
+        long count(){
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) count += counts.get(i);
+            return count;
+        }
+
+        // value at quantile q (0 to 1) in microseconds, as the upper bound of
+        // its bucket, 0 if nothing was recorded
+        double percentileMicros(double q){
+            long count = count();
+            if (count == 0) return 0;
+            long rank = (long) Math.ceil(q * count);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts.get(i);
+                if (seen >= Math.max(1, rank)) return Math.min(upperBound(i), max.get()) / 1e3;
+            }
+            return max.get() / 1e3;
+        }
+
+        void toJson(StringBuilder json){
+            long count = count();
+            json.append("{\"count\":").append(count);
+            json.append(",\"mean\":").append(count == 0 ? 0 : total.sum() / 1e3 / count);
+            json.append(",\"p50\":").append(percentileMicros(.5));
+            json.append(",\"p90\":").append(percentileMicros(.9));
+            json.append(",\"p99\":").append(percentileMicros(.99));
+            json.append(",\"max\":").append(max.get() / 1e3).append('}');
+        }
+    }
+
+    public long getDocuments(){
+        return documents.sum();
+    }
+
+    public long getTokens(){
+        return tokens.sum();
+    }
+
+    public long getUnknownTokens(){
+        return unknownTokens.sum();
+    }
+
+    public long getTrainingDocuments(){
+        return trainingDocuments.sum();
+    }
+
+    public double getTrainingDocumentsPerSecond(){
+        return trainingDocumentsPerSecond();
+    }
+
+    public long getModelBytes(){
+        return modelBytes.getAsLong();
+    }
+
+    public double getParseP50Micros(){
+        return PARSE.percentileMicros(.5);
+    }
+
+    public double getParseP99Micros(){
+        return PARSE.percentileMicros(.99);
+    }
+
+    public double getStopwordsP50Micros(){
+        return STOPWORDS.percentileMicros(.5);
+    }
+
+    public double getStopwordsP99Micros(){
+        return STOPWORDS.percentileMicros(.99);
+    }
+
+    public double getScoreP50Micros(){
+        return SCORE.percentileMicros(.5);
+    }
+
+    public double getScoreP99Micros(){
+        return SCORE.percentileMicros(.99);
+    }
+
+    public double getOutputP50Micros(){
+        return OUTPUT.percentileMicros(.5);
+    }
+
+    public double getOutputP99Micros(){
+        return OUTPUT.percentileMicros(.99);
+    }
+
+    public long getCacheHits(){
+        return cache == null ? 0 : cache.hits.sum();
+    }
+
+    public long getCacheMisses(){
+        return cache == null ? 0 : cache.misses.sum();
+    }
+
+    public double getCacheHitRate(){
+        return cache == null ? 0 : cache.hitRate();
+    }
+
+    public String getPredictions(){
+        return predictionCounts().toString();
+    }
+
+    public String getSnapshot(){
+        return snapshot();
+    }
+}
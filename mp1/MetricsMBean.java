@@ -0,0 +1,45 @@
+// What Metrics shows over JMX, as NaiveBayes:type=Metrics. Latencies are in
+// microseconds, over everything recorded since the process started.
+public interface MetricsMBean {
+
+    long getDocuments();
+
+    long getTokens();
+
+    long getUnknownTokens();
+
+    long getTrainingDocuments();
+
+    double getTrainingDocumentsPerSecond();
+
+    long getModelBytes();
+
+    double getParseP50Micros();
+
+    double getParseP99Micros();
+
+    double getStopwordsP50Micros();
+
+    double getStopwordsP99Micros();
+
+    double getScoreP50Micros();
+
+    double getScoreP99Micros();
+
+    double getOutputP50Micros();
+
+    double getOutputP99Micros();
+
+    // ResultCache lookups, 0 without a cache
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    double getCacheHitRate();
+
+    // documents labelled with each label, as label=count pairs
+    String getPredictions();
+
+    // everything above as one JSON object, the same as a dump line
+    String getSnapshot();
+}
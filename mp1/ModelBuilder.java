@@ -0,0 +1,168 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Trains a Model. Settings first, then documents, then build() once:
+//
+//   Model model = new ModelBuilder(stopwords).threads(4).sparse(true)
+//           .addFile(trainingFile).build();
+//
+// Everything a model needs is in the Model itself, its vocabulary included,
+// so any number of models can be built and used side by side in one JVM.
+// The built model is only changed by Model.update, which readers never
+// wait for, so it can be shared by every thread that classifies with it.
+class ModelBuilder {
+
+    // bytes of the training file handed to a training worker at a time
+    static final long CHUNK_BYTES = 64L << 20;
+
+    private final Vocabulary stopwords;
+    private int hashBits = 0;
+    private int ngrams = 1;
+    private boolean sparse = false;
+    private boolean offHeap = false;
+    private FeatureSelection selection;
+    private int threads = 1;
+
+    // created by the first document, settings are fixed from then on
+    private Model model;
+    private boolean built = false;
+
+    // documents counted, and when the first one was
+    private long documents = 0;
+    private long started;
+
+    ModelBuilder(Vocabulary stopwords) {
+        this.stopwords = stopwords;
+    }
+
+    // hash words into 2^hashBits buckets, see Model.hashBits
+    public ModelBuilder hashBits(int hashBits){
+        checkSettings();
+        this.hashBits = hashBits;
+        return this;
+    }
+
+    // count n-grams of up to n words as well, see Model.ngrams
+    public ModelBuilder ngrams(int n){
+        checkSettings();
+        this.ngrams = n;
+        return this;
+    }
+
+    // see Model.sparse
+    public ModelBuilder sparse(boolean sparse){
+        checkSettings();
+        this.sparse = sparse;
+        return this;
+    }
+
+    // see Model.offHeap
+    public ModelBuilder offHeap(boolean offHeap){
+        checkSettings();
+        this.offHeap = offHeap;
+        return this;
+    }
+
+    // see Model.selection, null keeps every word
+    public ModelBuilder selection(FeatureSelection selection){
+        checkSettings();
+        this.selection = selection;
+        return this;
+    }
+
+    // workers counting a training file in addFile, 1 counts on the caller's thread
+    public ModelBuilder threads(int threads){
+        checkSettings();
+        this.threads = threads;
+        return this;
+    }
+
+    // count one training document, read with the builder's stop words
+    public ModelBuilder add(CorpusReader.Document doc){
+        model().addDocument(doc);
+        documents++;
+        return this;
+    }
+
+    // count one training document given as words, stop words are dropped here
+    public ModelBuilder add(int label, String[] words){
+        model().addDocument(label, words);
+        documents++;
+        return this;
+    }
+
+    // count every labelled line of file
+    public ModelBuilder addFile(File file) throws IOException {
+        Model model = model();
+        if (threads <= 1) {
+            CorpusReader.read(file, stopwords, this::add);
+            return this;
+        }
+
+        // each worker counts a chunk into its own TrainingShard, and the
+        // shards are merged in file order, so the model is the same one a
+        // single thread would have counted
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<TrainingShard>> shards = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            int parts = (int) Math.max(threads, channel.size() / CHUNK_BYTES);
+            long[] bounds = CorpusReader.split(channel, parts);
+            for (int i = 0; i + 1 < bounds.length; i++) {
+                long start = bounds[i];
+                long end = bounds[i + 1];
+                shards.add(pool.submit(() -> {
+                    TrainingShard shard = new TrainingShard(hashBits, ngrams);
+                    CorpusReader.read(channel, start, end, stopwords, shard::addDocument);
+                    return shard;
+                }));
+            }
+
+            for (Future<TrainingShard> shard : shards) {
+                TrainingShard counts = shard.get();
+                for (Category category : counts.categories) documents += category.documents;
+                model.merge(counts);
+            }
+        } catch (InterruptedException | ExecutionException exception) {
+            throw new IOException("Training failed: " + exception.getCause(), exception);
+        } finally {
+            pool.shutdown();
+        }
+        return this;
+    }
+
+    // lay out the counted model for scoring and hand it over. The builder
+    // cannot be used again. Throws IllegalStateException if no document
+    // was added
+    public Model build(){
+        Model model = model();
+        built = true;
+        model.optimize();
+        Metrics.trained(documents, System.nanoTime() - started);
+        return model;
+    }
+
+    private Model model(){
+        if (built) throw new IllegalStateException("build() has already been called");
+        if (model == null) {
+            model = new Model(stopwords, hashBits);
+            model.ngrams = ngrams;
+            model.sparse = sparse;
+            model.offHeap = offHeap;
+            model.selection = selection;
+            started = System.nanoTime();
+        }
+        return model;
+    }
+
+    private void checkSettings(){
+        if (model != null) throw new IllegalStateException("settings cannot change once documents have been added");
+    }
+}
@@ -0,0 +1,184 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+// Saves a trained Model to a binary file and loads it back.
+//
+// Layout, little endian, every section starting on an 8 byte boundary:
+//   int magic "NBCM", int version, int classes, int hash bits, int vocab size, int rows,
+//   int n-grams, int dropped words, double smoothing
+//   int[classes] label, int[classes] documents, int[classes] words, all by column
+//   double[classes] log P(c), double[classes] log normalizer
+//   stop words, then vocab, as written by Vocabulary.write
+//   the dropped words of Model.dropped, if there are any, the same way
+//   double[rows * classes] log(count + smoothing), word-major as in Model.logCounts
+//
+// rows is the vocab size, or 2^hash bits for a hashed model, whose vocab is empty
+// and whose vocab size is the number of buckets in use.
+//
+// load() maps the file and scores straight out of the mapped log count table,
+// so loading does not read it and processes using the same file share its pages.
+// Version 1 files stored log P(w|c) instead of log counts, version 2 files had
+// no hash bits, version 3 files always had labels 1 to 15 with equal priors and
+// version 4 files had no n-gram length, none of them is readable. Version 5
+// files had no dropped words and are read as a model without any.
+class ModelFile {
+
+    static final int MAGIC = 0x4E42434D;
+    static final int VERSION = 6;
+
+    public static void save(Model model, File file) throws IOException {
+        Vocabulary vocab = model.vocab;
+        int rows = model.rows();
+        int classes = model.classes;
+        long tableOffset = align(40 + 12L * classes) + 16L * classes
+                + align(model.stopwordSet.serializedSize()) + align(vocab.serializedSize())
+                + (model.dropped == null ? 0 : align(model.dropped.serializedSize()));
+        long size = tableOffset + 8L * rows * classes;
+        if (size > Integer.MAX_VALUE) throw new IOException("Model too large to save: " + size + " bytes");
+
+        // write a temporary file next to file and move it into place once
+        // complete. The model may be mapped from file itself, by load() in
+        // this process or another, and writing over it would change the
+        // tables being read from under them
+        File directory = file.getAbsoluteFile().getParentFile();
+        Path temporary = File.createTempFile(file.getName() + ".", ".tmp", directory).toPath();
+        try {
+            write(model, temporary.toFile(), size);
+            Files.move(temporary, file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    private static void write(Model model, File file, long size) throws IOException {
+        Vocabulary vocab = model.vocab;
+        int rows = model.rows();
+        int classes = model.classes;
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.setLength(size);
+            MappedByteBuffer buf = out.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+
+            buf.putInt(MAGIC).putInt(VERSION).putInt(classes).putInt(model.hashBits);
+            buf.putInt(model.vocabSize()).putInt(rows);
+            buf.putInt(model.ngrams).putInt(model.dropped == null ? 0 : model.dropped.size());
+            buf.putDouble(Category.SMOOTHING);
+            for (Category category : model.categories) buf.putInt(category.classNumber);
+            for (Category category : model.categories) buf.putInt(category.documents);
+            for (Category category : model.categories) buf.putInt(category.totalWords);
+            pad(buf);
+            for (int i = 0; i < classes; i++) buf.putDouble(model.logPriors[i]);
+            for (int i = 0; i < classes; i++) buf.putDouble(model.logNormalizers[i]);
+
+            model.stopwordSet.write(buf);
+            pad(buf);
+            vocab.write(buf);
+            pad(buf);
+            if (model.dropped != null) {
+                model.dropped.write(buf);
+                pad(buf);
+            }
+
+            if (model.postings != null || model.quantized != null) {
+                // the file always holds the dense table, usePostings() and
+                // quantize() lay out a loaded model the same way again
+                DoubleBuffer table = buf.asDoubleBuffer();
+                for (int id = 0; id < rows; id++) {
+                    for (int i = 0; i < classes; i++) table.put(model.logCount(id, i));
+                }
+            } else {
+                // update() may have left spare rows past the vocab
+                DoubleBuffer logCounts = model.logCounts.duplicate();
+                logCounts.position(0).limit(rows * classes);
+                buf.asDoubleBuffer().put(logCounts);
+            }
+            buf.force();
+        }
+    }
+
+    // load a model written by save()
+    public static Model load(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) throw new IOException("Model file too large: " + channel.size() + " bytes");
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+
+            if (buf.remaining() < 40 || buf.getInt() != MAGIC) throw new IOException("Not a model file: " + file);
+            int version = buf.getInt();
+            if (version != VERSION && version != 5) throw new IOException("Unsupported model file version " + version);
+            int classes = buf.getInt();
+            int hashBits = buf.getInt();
+            int vocabSize = buf.getInt();
+            int rows = buf.getInt();
+            int ngrams = buf.getInt();
+            // always 0 in version 5 files
+            int droppedWords = buf.getInt();
+            double smoothing = buf.getDouble();
+            if (smoothing != Category.SMOOTHING) throw new IOException("Model was trained with smoothing " + smoothing);
+
+            if (classes < 0 || buf.remaining() < 28L * classes) throw new IOException("Corrupt model file: " + file);
+            int[] labels = new int[classes];
+            for (int i = 0; i < classes; i++) labels[i] = buf.getInt();
+            int[] documents = new int[classes];
+            for (int i = 0; i < classes; i++) documents[i] = buf.getInt();
+            int[] totalWords = new int[classes];
+            for (int i = 0; i < classes; i++) totalWords[i] = buf.getInt();
+            pad(buf);
+            double[] logPriors = new double[classes];
+            for (int i = 0; i < classes; i++) logPriors[i] = buf.getDouble();
+            double[] logNormalizers = new double[classes];
+            for (int i = 0; i < classes; i++) logNormalizers[i] = buf.getDouble();
+
+            Vocabulary stopwordSet = Vocabulary.read(buf);
+            pad(buf);
+            Vocabulary vocab = Vocabulary.read(buf);
+            pad(buf);
+            Vocabulary dropped = null;
+            if (droppedWords > 0) {
+                dropped = Vocabulary.read(buf);
+                pad(buf);
+                if (dropped.size() != droppedWords) throw new IOException("Corrupt model file: " + file);
+            }
+            if (ngrams < 1 || rows != (hashBits > 0 ? 1 << hashBits : vocab.size())) throw new IOException("Corrupt model file: " + file);
+            if (buf.remaining() != 8L * rows * classes) throw new IOException("Corrupt model file: " + file);
+
+            Model model = new Model(stopwordSet, hashBits);
+            if (hashBits > 0) model.usedBuckets = vocabSize;
+            model.ngrams = ngrams;
+            for (int i = 0; i < classes; i++) {
+                Category category = model.category(labels[i]);
+                category.documents = documents[i];
+                category.totalWords = totalWords[i];
+            }
+            if (model.categories.size() != classes) throw new IOException("Corrupt model file: " + file);
+            model.classes = classes;
+            model.labels = labels;
+            model.logPriors = logPriors;
+            model.logNormalizers = logNormalizers;
+            model.logCounts = buf.slice().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+            model.vocab = vocab;
+            model.dropped = dropped;
+            model.hasWordCounts = false;
+            return model;
+        }
+    }
+
+    private static long align(long size){
+        return (size + 7) & ~7L;
+    }
+
+    // move buf up to the next 8 byte boundary
+    private static void pad(ByteBuffer buf){
+        buf.position((int) align(buf.position()));
+    }
+}
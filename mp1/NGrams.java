@@ -0,0 +1,80 @@
+import java.nio.ByteBuffer;
+
+// Word n-gram features. The n-grams of a document are every run of 2 up to n
+// tokens in a row, once stop words are gone. Each gets a 64-bit rolling hash
+// of its tokens' Vocabulary hashes, which the reader already has, so no
+// String or byte copy of an n-gram is ever built. Token hashes are used
+// rather than vocab ids because they never change, where ids are renumbered
+// by feature selection and differ between training shards.
+//
+// With feature hashing an n-gram's id is a bucket, shared with the words.
+// Otherwise it is a vocab entry keyed by KEY_BYTES bytes: MARKER, n, then
+// the hash. No token can start with MARKER, a space, so keys and words never
+// collide, and n-grams are counted, selected, saved and loaded like words.
+class NGrams {
+
+    static final byte MARKER = ' ';
+    static final int KEY_BYTES = 10;
+
+    // odd multiplier of the rolling hash
+    private static final long BASE = 0x9E3779B97F4A7C15L;
+
+    // n-grams of 2 up to n words in tokens words
+    static int count(int tokens, int n){
+        int count = 0;
+        for(int k = 2; k <= n; k++) count += Math.max(0, tokens - k + 1);
+        return count;
+    }
+
+    // write the ids of the 2 up to n-grams of the first count token hashes
+    // into ids from index at, bigrams first, each in document order, and
+    // return the index after the last. ids must have room for
+    // count(count, n) more. If add is false, n-grams not in vocab are -1.
+    // Those in dropped, if there is one, are Model.SKIPPED and never added.
+    // key is scratch space of at least KEY_BYTES
+    static int ids(int[] hashes, int count, int n, Vocabulary vocab, Vocabulary dropped, int hashBits,
+                   ByteBuffer key, boolean add, int[] ids, int at){
+        for(int k = 2; k <= n; k++){
+            // BASE^k, to take the token leaving the window back out
+            long leaving = 1;
+            for(int j = 0; j < k; j++) leaving *= BASE;
+
+            long h = 0;
+            for(int i = 0; i < count; i++){
+                h = h * BASE + (hashes[i] & 0xFFFFFFFFL);
+                if(i >= k) h -= (hashes[i - k] & 0xFFFFFFFFL) * leaving;
+                if(i >= k - 1) ids[at++] = id(mix(h, k), k, vocab, dropped, hashBits, key, add);
+            }
+        }
+        return at;
+    }
+
+    // id of the k-gram with hash gram, as above
+    private static int id(long gram, int k, Vocabulary vocab, Vocabulary dropped, int hashBits, ByteBuffer key, boolean add){
+        if(hashBits > 0) return (int) (gram ^ (gram >>> 32)) & ((1 << hashBits) - 1);
+        key.put(0, MARKER).put(1, (byte) k).putLong(2, gram);
+        int hash = Vocabulary.hash(key, 0, KEY_BYTES);
+        if(dropped == null) return add ? vocab.add(key, 0, KEY_BYTES, hash) : vocab.id(key, 0, KEY_BYTES, hash);
+        int id = vocab.id(key, 0, KEY_BYTES, hash);
+        if(id >= 0) return id;
+        if(dropped.id(key, 0, KEY_BYTES, hash) >= 0) return Model.SKIPPED;
+        return add ? vocab.add(key, 0, KEY_BYTES, hash) : -1;
+    }
+
+    // spread the bits of a window's hash, so buckets and key hashes of
+    // windows that differ in one token differ everywhere
+    private static long mix(long h, int k){
+        h += k * 0xC2B2AE3D27D4EB4FL;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    // whether entry id of vocab is an n-gram rather than a word
+    static boolean isGram(Vocabulary vocab, int id){
+        return vocab.firstByte(id) == MARKER;
+    }
+}
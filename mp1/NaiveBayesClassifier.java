@@ -1,11 +1,26 @@
-import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.lang.reflect.Array;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.text.DecimalFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class NaiveBayesClassifier {
 
@@ -21,151 +36,571 @@ public class NaiveBayesClassifier {
 
      */
 
-    // Contains all the words found in training documents.
-    static Model model = new Model();
+    // Contains all the words found in training documents. Everything below
+    // belongs to one run, so several classifiers can run in one JVM
+    Model model;
 
     // used to print double values in better format
-    static DecimalFormat decFormat = new DecimalFormat("#0.000");
+    DecimalFormat decFormat = new DecimalFormat("#0.000");
 
-    static long timeTraining;
-    static long timeLabeling;
-    static double accTraining;
-    static double accTesting;
+    long nanosTraining;
+    long nanosLoading;
+    long nanosLabeling;
+    double accTraining;
+    double accTesting;
 
+    // worker threads used for training, 1 trains on the main thread
+    int threads = 1;
+
+    // classify on a pool of workers instead of one line at a time
+    boolean batch = false;
+
+    // bytes of a file handed to a classification worker at a time
+    static final long BATCH_BYTES = 4L << 20;
+
+    // save the trained model here, or load it from here instead of training
+    File saveFile;
+    File loadFile;
+
+    // labelled documents added to the model with Model.update after training
+    File updateFile;
+
+    // stop word list to train with, stopwords.txt on the classpath if not set
+    File stopwordsFile;
+
+    // train a feature hashed model with 2^hashBits buckets, 0 keeps every word
+    int hashBits = 0;
+
+    // count word n-grams of up to ngrams words as features too, see NGrams.
+    // N-grams seen fewer than ngramMinCount times in training are dropped
+    int ngrams = 1;
+    int ngramMinCount = 2;
+
+    // serve classification requests over HTTP on this port instead of labeling a file,
+    // listening on bindAddress, the loopback address unless -bind says otherwise
+    int servePort = -1;
+    InetAddress bindAddress = InetAddress.getLoopbackAddress();
+
+    // label the lines of stdin onto stdout instead of labeling a file, see
+    // ClassificationPipeline
+    boolean pipe = false;
+
+    // keep the model as a PostingTable, see Model.sparse
+    boolean sparse = false;
+
+    // keep the model's tables in direct memory, see Model.offHeap
+    boolean offHeap = false;
+
+    // score with a QuantizedTable of this format once the model is trained,
+    // loaded, updated and saved, null keeps the double table
+    QuantizedTable.Format quantizeFormat;
+
+    // feature selection for training, see FeatureSelection. 0 features and
+    // a min count of 0 keep every word
+    int features = 0;
+    int minCount = 0;
+    FeatureSelection.Score featureScore = FeatureSelection.Score.FREQUENCY;
+
+    // cross-validate over the input file with this many folds instead of
+    // training and testing, 0 for no cross-validation
+    int folds = 0;
+
+    // cache results for up to this many distinct documents, each for at most
+    // cacheSeconds (0 for no limit), see ResultCache. 0 entries for no cache
+    int cacheEntries = 0;
+    long cacheSeconds = 0;
+    ResultCache cache;
+
+    // record Metrics and write them to this file ("-" for stderr) every
+    // METRICS_SECONDS and at the end, null leaves them off
+    String metricsFile;
+    static final int METRICS_SECONDS = 10;
 
     public static void main(String[] args) {
+        new NaiveBayesClassifier().run(args);
+    }
+
+    // parse the command line, then train or load, and label
+    void run(String[] args) {
+
+        List<String> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-threads") && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-batch")) {
+                batch = true;
+            } else if (args[i].equals("-save") && i + 1 < args.length) {
+                saveFile = new File(args[++i]);
+            } else if (args[i].equals("-load") && i + 1 < args.length) {
+                loadFile = new File(args[++i]);
+            } else if (args[i].equals("-update") && i + 1 < args.length) {
+                updateFile = new File(args[++i]);
+            } else if (args[i].equals("-stopwords") && i + 1 < args.length) {
+                stopwordsFile = new File(args[++i]);
+            } else if (args[i].equals("-hash") && i + 1 < args.length) {
+                hashBits = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-ngrams") && i + 1 < args.length) {
+                ngrams = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-ngrammincount") && i + 1 < args.length) {
+                ngramMinCount = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-serve") && i + 1 < args.length) {
+                servePort = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-bind") && i + 1 < args.length) {
+                bindAddress = parseAddress(args[++i]);
+            } else if (args[i].equals("-pipe")) {
+                pipe = true;
+            } else if (args[i].equals("-sparse")) {
+                sparse = true;
+            } else if (args[i].equals("-offheap")) {
+                offHeap = true;
+            } else if (args[i].equals("-quantize") && i + 1 < args.length) {
+                quantizeFormat = parseFormat(args[++i]);
+            } else if (args[i].equals("-features") && i + 1 < args.length) {
+                features = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-mincount") && i + 1 < args.length) {
+                minCount = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-select") && i + 1 < args.length) {
+                featureScore = parseScore(args[++i]);
+            } else if (args[i].equals("-folds") && i + 1 < args.length) {
+                folds = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-cache") && i + 1 < args.length) {
+                cacheEntries = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-cachettl") && i + 1 < args.length) {
+                cacheSeconds = Long.parseLong(args[++i]);
+            } else if (args[i].equals("-metrics") && i + 1 < args.length) {
+                metricsFile = args[++i];
+            } else {
+                files.add(args[i]);
+            }
+        }
 
-        if(args.length != 2) {
+        if(hashBits < 0 || hashBits > 26) {
+            System.out.println("-hash takes between 1 and 26 bits, or 0 for no hashing");
+            System.exit(1);
+        }
+
+        if(ngrams < 1 || ngrams > 3 || ngramMinCount < 0) {
+            System.out.println("-ngrams takes 1, 2 or 3 words, and -ngrammincount cannot be negative");
+            System.exit(1);
+        }
+
+        if(features < 0 || minCount < 0) {
+            System.out.println("-features and -mincount cannot be negative");
+            System.exit(1);
+        }
+
+        // n-grams are pruned by ngramMinCount through feature selection, and a
+        // hashed bucket mixes rare n-grams with words that have to stay
+        if(hashBits > 0 && (features > 0 || minCount > 0 || ngrams > 1)) {
+            System.out.println("-features, -mincount and -ngrams above 1 need the exact vocabulary, not -hash");
+            System.exit(1);
+        }
+
+        if(cacheEntries < 0 || cacheSeconds < 0) {
+            System.out.println("-cache and -cachettl cannot be negative");
+            System.exit(1);
+        }
+        if(cacheEntries > 0) {
+            cache = new ResultCache(cacheEntries, cacheSeconds);
+            Metrics.cache = cache;
+        }
+
+        if(folds != 0) {
+            // the fold models are built, scored and let go inside CrossValidation,
+            // so none of the options that lay out, keep or serve a model apply
+            if(folds < 2 || files.size() != 1 || loadFile != null || saveFile != null || updateFile != null
+                    || servePort >= 0 || pipe || sparse || offHeap || quantizeFormat != null
+                    || features > 0 || minCount > 0 || cache != null || metricsFile != null) {
+                System.out.println("-folds k takes at least 2 folds and only the input file, without -load, -save, -update, "
+                        + "-serve, -pipe, -sparse, -offheap, -quantize, -features, -mincount, -cache or -metrics");
+                System.exit(1);
+            }
+            crossValidate(new File(files.get(0)));
+            return;
+        }
+
+        if(pipe && servePort >= 0) {
+            System.out.println("-pipe and -serve cannot be used together");
+            System.exit(1);
+        }
+
+        if(files.size() != (loadFile == null ? 1 : 0) + (servePort < 0 && !pipe ? 1 : 0)) {
             System.out.println("Two files needed: input, output");
+            System.out.println("With -load model, only the output file is needed");
+            System.out.println("With -serve port or -pipe, only the input file is needed");
+            System.out.println("Options: -threads n, -batch, -save model, -load model, -update file, -stopwords file, -hash bits, -ngrams n, -ngrammincount n, -serve port, -bind address, -pipe, -sparse, -offheap, -quantize float|short|byte, -features n, -mincount n, -select frequency|chi2|ig, -folds k, -cache entries, -cachettl seconds, -metrics file");
             System.exit(1);
         }
 
-        // train model, time how long it takes
-        File trainingFile = new File(args[0]);
-        long startTime = System.currentTimeMillis();
-        trainModel(trainingFile);
-        long endTime = System.currentTimeMillis();
-        timeTraining = (endTime-startTime)/1000;
+        if (metricsFile != null) {
+            Metrics.enable();
+            try {
+                Metrics.startDump(metricsFile, METRICS_SECONDS);
+            } catch (IOException ioException) {
+                System.err.println("Cannot write metrics: " + ioException.getMessage());
+                System.exit(1);
+            }
+        }
+
+        long startTime;
+        if (loadFile != null) {
+            // use a saved model, time how long loading takes
+            startTime = System.nanoTime();
+            loadModel(loadFile);
+            nanosLoading = System.nanoTime() - startTime;
+            Metrics.modelBytes = model::memoryBytes;
+
+            if (updateFile != null) updateModel(updateFile);
+            if (saveFile != null) saveModel(saveFile);
+            if (quantizeFormat != null) model.quantize(quantizeFormat);
+            if (servePort >= 0) {
+                serve(servePort);
+                return;
+            }
+            if (pipe) {
+                pipe();
+                return;
+            }
+        } else {
+            // train model, time how long it takes
+            File trainingFile = new File(files.get(0));
+            startTime = System.nanoTime();
+            trainModel(trainingFile);
+            nanosTraining = System.nanoTime() - startTime;
+            Metrics.modelBytes = model::memoryBytes;
+
+            if (updateFile != null) updateModel(updateFile);
+            if (saveFile != null) saveModel(saveFile);
+            if (quantizeFormat != null) model.quantize(quantizeFormat);
+            if (servePort >= 0) {
+                serve(servePort);
+                return;
+            }
+            if (pipe) {
+                pipe();
+                return;
+            }
 
-        // evaluate model on the training file
-        testOnTrainingFile(trainingFile);
+            // evaluate model on the training file
+            if (batch) batchTestOnTrainingFile(trainingFile);
+            else testOnTrainingFile(trainingFile);
+        }
 
         // evaluate model on test file, time how long it takes
-        startTime = System.currentTimeMillis();
-        File testFile = new File(args[1]);
-        testModel(testFile);
-        endTime = System.currentTimeMillis();
-        timeLabeling = (endTime-startTime)/1000;
+        startTime = System.nanoTime();
+        File testFile = new File(files.get(files.size() - 1));
+        if (batch) batchTestModel(testFile);
+        else testModel(testFile);
+        nanosLabeling = System.nanoTime() - startTime;
 
         // print results
         printResults();
+        Metrics.dump();
     }
 
-    // load training file to train model
-    private static void trainModel(File file){
-
-        // process each line
-        // build model.vocab, model.documentMap, model.documentLabelSeen
-        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                processTrainingLine(line);
-            }
+    // k-fold cross-validation of a model trained as main() would
+    private void crossValidate(File file){
+        Vocabulary stopwords = stopwordsFile == null ? Model.defaultStopwords() : readStopwords(stopwordsFile);
+        int workers = threads > 1 ? threads : Runtime.getRuntime().availableProcessors();
+        CrossValidation validation = new CrossValidation(folds, workers, stopwords, hashBits, ngrams, ngramMinCount);
+        try {
+            validation.run(file);
         } catch (IOException ioException) {
-            System.err.println("Cannot open training file");
+            System.err.println("Cannot cross-validate: " + ioException.getMessage());
             System.exit(1);
         }
+        validation.print(System.out);
+    }
+
+    private static FeatureSelection.Score parseScore(String name){
+        switch (name) {
+            case "frequency": return FeatureSelection.Score.FREQUENCY;
+            case "chi2": return FeatureSelection.Score.CHI_SQUARE;
+            case "ig": return FeatureSelection.Score.INFORMATION_GAIN;
+            default:
+                System.out.println("-select takes frequency, chi2 or ig");
+                System.exit(1);
+                return null;
+        }
+    }
+
+    private static InetAddress parseAddress(String name){
+        try {
+            return InetAddress.getByName(name);
+        } catch (UnknownHostException unknownHost) {
+            System.out.println("-bind takes an address of this machine, such as 0.0.0.0 for every interface");
+            System.exit(1);
+            return null;
+        }
+    }
+
+    private static QuantizedTable.Format parseFormat(String name){
+        switch (name) {
+            case "float": return QuantizedTable.Format.FLOAT;
+            case "short": return QuantizedTable.Format.SHORT;
+            case "byte": return QuantizedTable.Format.BYTE;
+            default:
+                System.out.println("-quantize takes float, short or byte");
+                System.exit(1);
+                return null;
+        }
+    }
 
-        model.optimize();
+    // train model on the training file
+    private void trainModel(File file){
+        Vocabulary stopwords = stopwordsFile == null ? Model.defaultStopwords() : readStopwords(stopwordsFile);
+        ModelBuilder builder = new ModelBuilder(stopwords)
+                .hashBits(hashBits)
+                .ngrams(ngrams)
+                .sparse(sparse)
+                .offHeap(offHeap)
+                .threads(threads);
+        boolean pruneGrams = ngrams > 1 && ngramMinCount > 1;
+        if (features > 0 || minCount > 0 || pruneGrams) {
+            builder.selection(new FeatureSelection(features, minCount, featureScore, pruneGrams ? ngramMinCount : 0));
+        }
+        try {
+            builder.addFile(file);
+        } catch (IOException ioException) {
+            System.err.println("Cannot read training file: " + ioException.getMessage());
+            System.exit(1);
+        }
+        try {
+            model = builder.build();
+        } catch (IllegalStateException exception) {
+            System.err.println("Cannot train on " + file + ": " + exception.getMessage());
+            System.exit(1);
+        }
     }
 
-    // returns string[], where [0] is the words and [1] is the class
-    private static String[] splitLine(String line) {
-        String splitLine[] = line.split(",");
-        return splitLine;
+    // keep serving the trained model over HTTP, the server's threads keep the JVM running
+    private void serve(int port){
+        int workers = threads > 1 ? threads : Runtime.getRuntime().availableProcessors();
+        try {
+            ClassificationServer server = new ClassificationServer(model, bindAddress, port, workers, cache);
+            server.start();
+            InetAddress address = server.address();
+            String host = address.isLoopbackAddress() ? "localhost"
+                    : address instanceof Inet6Address ? "[" + address.getHostAddress() + "]" : address.getHostAddress();
+            System.out.println("Serving on http://" + host + ":" + server.port() + "/classify");
+        } catch (IOException ioException) {
+            System.err.println("Cannot start server: " + ioException.getMessage());
+            System.exit(1);
+        }
     }
 
-    // process line by building model
-    private static void processTrainingLine(String line) {
-        String[] parsedLine = splitLine(line);
-        String[] words = parsedLine[0].split("\\s+");
-        int label = Integer.parseInt(parsedLine[1]);
+    // label the documents on stdin, one per line, onto stdout, and report
+    // the throughput on stderr once stdin ends
+    private void pipe(){
+        ClassificationPipeline pipeline = new ClassificationPipeline(model, cache);
+        try {
+            pipeline.run(System.in, new FileOutputStream(FileDescriptor.out));
+        } catch (IOException ioException) {
+            System.err.println("Cannot label stdin: " + ioException.getMessage());
+            System.exit(1);
+        }
+        pipeline.print(System.err);
+        Metrics.dump();
+    }
 
+    // feed every line of file to the trained model as a new labelled document
+    private void updateModel(File file){
+        try {
+            CorpusReader.read(file, model.stopwordSet, doc -> model.update(doc));
+        } catch (IOException ioException) {
+            System.err.println("Cannot read update file: " + ioException.getMessage());
+            System.exit(1);
+        }
+    }
 
-        // only consider 1/3 of the document to speed up training.
-        ArrayList<String> splitDoc = new ArrayList<>();
-        for (int i = 0; i<words.length/3; i++){
-            splitDoc.add(words[i]);
+    private static Vocabulary readStopwords(File file){
+        try {
+            return Model.readStopwords(file);
+        } catch (IOException ioException) {
+            System.err.println("Cannot open stopwords: " + ioException.getMessage());
+            System.exit(1);
+            return null;
         }
+    }
 
-        model.documentMap.get(label).addAll(splitDoc);
+    private void saveModel(File file){
+        try {
+            ModelFile.save(model, file);
+        } catch (IOException ioException) {
+            System.err.println("Cannot save model: " + ioException.getMessage());
+            System.exit(1);
+        }
+    }
 
-        // add any new words into model.vocab
-        model.vocab.addAll(Arrays.asList(words));
+    private void loadModel(File file){
+        try {
+            model = ModelFile.load(file);
+            if (sparse) model.usePostings();
+            if (offHeap) model.useOffHeap();
+        } catch (IOException ioException) {
+            System.err.println("Cannot load model: " + ioException.getMessage());
+            System.exit(1);
+        }
     }
 
     // pass in test file to be used to test model
-    private static void testModel(File testFile) {
-        try (BufferedReader br = new BufferedReader(new FileReader(testFile))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                // process the line.
-                processTestLine(line);
-            }
+    private void testModel(File testFile) {
+        try {
+            CorpusReader.read(testFile, model.stopwordSet, this::processTestDocument);
         } catch (IOException ioException) {
-            System.err.println("Cannot open test file.");
+            System.err.println("Cannot read test file: " + ioException.getMessage());
             System.exit(1);
         }
 
         accTesting = (double) numTestCorrect/numTestLines;
     }
 
-    static int numTestLines = 0;
-    static int numTestCorrect = 0;
+    int numTestLines = 0;
+    int numTestCorrect = 0;
     // process each document in test file and print the guessed label
-    private static void processTestLine(String line){
+    private void processTestDocument(CorpusReader.Document doc){
         numTestLines++;
-        String[] parsedLine = splitLine(line);
-        String[] words = parsedLine[0].split("\\s+");
-        int label = Integer.parseInt(parsedLine[1]);
-
-        ArrayList<String> wordsList = new ArrayList<>(Arrays.asList(words));
-        int guessedLabel = model.guessClassLabel(wordsList);
-        if(label == guessedLabel) numTestCorrect++;
+        int guessedLabel = guessClassLabel(doc);
+        if(doc.label == guessedLabel) numTestCorrect++;
+        long started = Metrics.enabled ? System.nanoTime() : 0;
         System.out.println(guessedLabel);
+        if (Metrics.enabled) Metrics.OUTPUT.record(System.nanoTime() - started);
+    }
+
+    // label of doc, from the cache if there is one
+    private int guessClassLabel(CorpusReader.Document doc){
+        long started = Metrics.enabled ? System.nanoTime() : 0;
+        int label;
+        if (cache != null) {
+            label = cache.classify(model, doc).label;
+            // a hit never looked the words up, Metrics needs them
+            if (Metrics.enabled) model.wordIds(doc);
+        } else {
+            label = model.guessClassLabel(doc);
+        }
+        if (Metrics.enabled) Metrics.labelled(doc, label, System.nanoTime() - started);
+        return label;
     }
 
     // run model on training file
-    static int numTrainingLines = 0;
-    static int numCorrect = 0;
-    private static void testOnTrainingFile(File file){
-        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                // process the line.
-                processTrainingTestLine(line);
-            }
+    int numTrainingLines = 0;
+    int numCorrect = 0;
+    private void testOnTrainingFile(File file){
+        try {
+            CorpusReader.read(file, model.stopwordSet, this::processTrainingTestDocument);
         } catch (IOException ioException) {
-            System.err.println("Cannot open test file.");
+            System.err.println("Cannot read training file: " + ioException.getMessage());
             System.exit(1);
         }
 
         accTraining = (double) numCorrect/numTrainingLines;
     }
 
-    private static void processTrainingTestLine(String line){
+    private void processTrainingTestDocument(CorpusReader.Document doc){
         numTrainingLines++;
-        String[] parsedLine = splitLine(line);
-        String[] words = parsedLine[0].split("\\s+");
-        int label = Integer.parseInt(parsedLine[1]);
-        if(model.guessClassLabel(new ArrayList<>(Arrays.asList(words))) == label)
+        if(guessClassLabel(doc) == doc.label)
             numCorrect++;
     }
 
-    private static void printResults(){
-        System.out.println(timeTraining + " seconds (training)");
-        System.out.println(timeLabeling + " seconds (labeling)");
-        System.out.println(decFormat.format(accTraining) + " (training)");
+    // batch version of testModel, labels are written in input order
+    private void batchTestModel(File testFile) {
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16));
+        int[] counts = batchClassify(testFile, out);
+        out.flush();
+
+        numTestLines = counts[0];
+        numTestCorrect = counts[1];
+        accTesting = (double) numTestCorrect/numTestLines;
+    }
+
+    // batch version of testOnTrainingFile
+    private void batchTestOnTrainingFile(File file) {
+        int[] counts = batchClassify(file, null);
+
+        numTrainingLines = counts[0];
+        numCorrect = counts[1];
+        accTraining = (double) numCorrect/numTrainingLines;
+    }
+
+    // labels guessed for one chunk of lines and how many were right
+    private static class ChunkResult {
+        int[] labels = new int[256];
+        int count;
+        int correct;
+    }
+
+    // classify the lines of file on a pool of workers sharing the trained
+    // model, which is only read while classifying. Chunks are written to out
+    // (if not null) in the order they appear in the file. returns {lines, correct}
+    private int[] batchClassify(File file, PrintWriter out) {
+        int workers = threads > 1 ? threads : Runtime.getRuntime().availableProcessors();
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        Deque<Future<ChunkResult>> pending = new ArrayDeque<>();
+        int[] counts = new int[2];
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            int parts = (int) Math.max(4L * workers, channel.size() / BATCH_BYTES);
+            long[] bounds = CorpusReader.split(channel, parts);
+            for (int i = 0; i + 1 < bounds.length; i++) {
+                pending.add(pool.submit(classifyChunk(channel, bounds[i], bounds[i + 1])));
+
+                // keep a couple of chunks per worker in flight
+                if (pending.size() >= 2 * workers) writeChunk(pending.poll().get(), out, counts);
+            }
+
+            while (!pending.isEmpty()) writeChunk(pending.poll().get(), out, counts);
+        } catch (IOException ioException) {
+            System.err.println("Cannot read file: " + ioException.getMessage());
+            System.exit(1);
+        } catch (InterruptedException | ExecutionException exception) {
+            System.err.println("Labeling failed: " + exception.getCause());
+            System.exit(1);
+        } finally {
+            pool.shutdown();
+        }
+
+        return counts;
+    }
+
+    // task that guesses the label of every line in [start, end) of the file
+    private Callable<ChunkResult> classifyChunk(FileChannel channel, long start, long end){
+        return () -> {
+            ChunkResult result = new ChunkResult();
+            CorpusReader.read(channel, start, end, model.stopwordSet, doc -> {
+                int guessedLabel = guessClassLabel(doc);
+                if (guessedLabel == doc.label) result.correct++;
+                if (result.count == result.labels.length) result.labels = Arrays.copyOf(result.labels, result.count * 2);
+                result.labels[result.count++] = guessedLabel;
+            });
+            return result;
+        };
+    }
+
+    private void writeChunk(ChunkResult result, PrintWriter out, int[] counts){
+        counts[0] += result.count;
+        counts[1] += result.correct;
+        if (out == null) return;
+        long started = Metrics.enabled ? System.nanoTime() : 0;
+        for (int i = 0; i < result.count; i++) {
+            out.println(result.labels[i]);
+        }
+        if (Metrics.enabled) Metrics.OUTPUT.record(System.nanoTime() - started);
+    }
+
+    private void printResults(){
+        if (loadFile != null) System.out.println(decFormat.format(nanosLoading / 1e6) + " milliseconds (loading model)");
+        else System.out.println(decFormat.format(nanosTraining / 1e9) + " seconds (training)");
+        System.out.println(decFormat.format(nanosLabeling / 1e9) + " seconds (labeling)");
+        if (loadFile == null) System.out.println(decFormat.format(accTraining) + " (training)");
         System.out.println(decFormat.format(accTesting) + " (testing)");
+        System.out.println((model.memoryBytes() >> 10) + " KB (model)");
+        if (cache != null) {
+            System.out.println(decFormat.format(cache.hitRate()) + " (cache hit rate, " + cache.hits.sum() + " hits, "
+                    + cache.misses.sum() + " misses, " + cache.evictions.sum() + " evictions)");
+        }
+        if (batch) {
+            double docsPerSecond = numTestLines * 1e9 / Math.max(1, nanosLabeling);
+            System.out.println(decFormat.format(docsPerSecond) + " documents/second (labeling)");
+        }
     }
 }
@@ -0,0 +1,161 @@
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+// Sparse word-major table of log counts, for models with many classes. Each
+// word id points to the classes that counted it, in ascending order, and how
+// far log(count + SMOOTHING) is above the log(SMOOTHING) every other class
+// gets for it. Scoring starts every class from that baseline and then only
+// touches the classes each word actually appeared in, so a word costs the
+// length of its posting list instead of the number of classes.
+class PostingTable {
+
+    private static final int[] NO_CLASSES = new int[0];
+    private static final double[] NO_DELTAS = new double[0];
+
+    // by word id: class indexes with a non-zero count, and their deltas
+    private int[][] classes;
+    private double[][] deltas;
+    // postings in the whole table
+    private long entries;
+
+    PostingTable(int rows) {
+        classes = new int[rows][];
+        deltas = new double[rows][];
+        Arrays.fill(classes, NO_CLASSES);
+        Arrays.fill(deltas, NO_DELTAS);
+    }
+
+    // postings for the counts of categories, whose index is their class
+    static PostingTable fromCounts(List<Category> categories, int rows){
+        PostingTable table = new PostingTable(rows);
+        int[] lengths = new int[rows];
+        for(Category category : categories){
+            for(int id = 0; id < rows; id++){
+                if(category.count(id) > 0) lengths[id]++;
+            }
+        }
+        table.allocate(lengths);
+
+        // categories are in index order, so each list fills up in order
+        Arrays.fill(lengths, 0);
+        for(Category category : categories){
+            for(int id = 0; id < rows; id++){
+                int count = category.count(id);
+                if(count == 0) continue;
+                table.classes[id][lengths[id]] = category.index;
+                table.deltas[id][lengths[id]++] = Math.log(count + Category.SMOOTHING) - Category.LOG_SMOOTHING;
+            }
+        }
+        return table;
+    }
+
+    // postings for a dense word-major table with the given number of classes
+    static PostingTable fromLogCounts(DoubleBuffer logCounts, int rows, int classCount){
+        PostingTable table = new PostingTable(rows);
+        int[] lengths = new int[rows];
+        for(int id = 0; id < rows; id++){
+            for(int i = 0; i < classCount; i++){
+                if(logCounts.get(id * classCount + i) != Category.LOG_SMOOTHING) lengths[id]++;
+            }
+        }
+        table.allocate(lengths);
+
+        for(int id = 0; id < rows; id++){
+            int n = 0;
+            for(int i = 0; i < classCount; i++){
+                double logCount = logCounts.get(id * classCount + i);
+                if(logCount == Category.LOG_SMOOTHING) continue;
+                table.classes[id][n] = i;
+                table.deltas[id][n++] = logCount - Category.LOG_SMOOTHING;
+            }
+        }
+        return table;
+    }
+
+    private void allocate(int[] lengths){
+        for(int id = 0; id < lengths.length; id++){
+            if(lengths[id] == 0) continue;
+            classes[id] = new int[lengths[id]];
+            deltas[id] = new double[lengths[id]];
+            entries += lengths[id];
+        }
+    }
+
+    public int rows(){
+        return classes.length;
+    }
+
+    // log(count + SMOOTHING) of word id in class i
+    public double logCount(int id, int i){
+        if(id >= classes.length) return Category.LOG_SMOOTHING;
+        int n = Arrays.binarySearch(classes[id], i);
+        return n < 0 ? Category.LOG_SMOOTHING : Category.LOG_SMOOTHING + deltas[id][n];
+    }
+
+    // set the log count of word id in class i, adding a posting if it had none
+    public void setLogCount(int id, int i, double logCount){
+        ensureRows(id + 1);
+        int n = Arrays.binarySearch(classes[id], i);
+        if(n >= 0){
+            deltas[id][n] = logCount - Category.LOG_SMOOTHING;
+            return;
+        }
+
+        // new lists are built aside and swapped in, scoring never sees a
+        // half shifted one
+        n = -n - 1;
+        int[] grownClasses = new int[classes[id].length + 1];
+        double[] grownDeltas = new double[grownClasses.length];
+        System.arraycopy(classes[id], 0, grownClasses, 0, n);
+        System.arraycopy(deltas[id], 0, grownDeltas, 0, n);
+        System.arraycopy(classes[id], n, grownClasses, n + 1, classes[id].length - n);
+        System.arraycopy(deltas[id], n, grownDeltas, n + 1, deltas[id].length - n);
+        grownClasses[n] = i;
+        grownDeltas[n] = logCount - Category.LOG_SMOOTHING;
+        deltas[id] = grownDeltas;
+        classes[id] = grownClasses;
+        entries++;
+    }
+
+    // true if no class has counted word id
+    public boolean isEmptyRow(int id){
+        return id >= classes.length || classes[id].length == 0;
+    }
+
+    // add the deltas of word id into scores, indexed by class
+    public void addDeltas(int id, double[] scores){
+        int[] rowClasses = classes[id];
+        double[] rowDeltas = deltas[id];
+        for(int n = 0; n < rowClasses.length; n++){
+            scores[rowClasses[n]] += rowDeltas[n];
+        }
+    }
+
+    // make room for rows words, doubling so adding words is amortized O(1)
+    private void ensureRows(int rows){
+        if(rows <= classes.length) return;
+        int oldRows = classes.length;
+        int grownRows = Math.max(rows, oldRows * 2);
+        int[][] grownClasses = Arrays.copyOf(classes, grownRows);
+        double[][] grownDeltas = Arrays.copyOf(deltas, grownRows);
+        Arrays.fill(grownClasses, oldRows, grownRows, NO_CLASSES);
+        Arrays.fill(grownDeltas, oldRows, grownRows, NO_DELTAS);
+        deltas = grownDeltas;
+        classes = grownClasses;
+    }
+
+    // postings in the whole table
+    public long entries(){
+        return entries;
+    }
+
+    // bytes held by the table, counting a 16 byte header per array
+    public long memoryBytes(){
+        long bytes = 2 * (16 + 8L * classes.length);
+        for(int id = 0; id < classes.length; id++){
+            if(classes[id].length > 0) bytes += 32 + 12L * classes[id].length;
+        }
+        return bytes;
+    }
+}
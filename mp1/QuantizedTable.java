@@ -0,0 +1,216 @@
+import java.util.Arrays;
+
+// Compact copy of a model's log counts for scoring, word-major like
+// Model.logCounts but with 4, 2 or 1 bytes per entry instead of 8, so a
+// model several times larger still fits in the CPU caches.
+//
+//   FLOAT  log(count + SMOOTHING) as a float, added into double scores
+//   SHORT  how far it is above log(SMOOTHING), in 65535 steps per class
+//   BYTE   the same in 255 steps per class
+//
+// The steps of class i are scales[i] wide, its largest log count over the
+// steps. SHORT and BYTE add up the steps of a document's words, four rows
+// per pass over the classes, exactly in int accumulators, and every
+// chunkWords() words, before an int could overflow, multiply them by the
+// scale into the double scores. So the only error is each entry's rounding,
+// at most half a step. FLOAT adds four float rows per pass into the scores.
+class QuantizedTable {
+
+    enum Format {
+        FLOAT(4), SHORT(2), BYTE(1);
+
+        final int bytes;
+
+        Format(int bytes) {
+            this.bytes = bytes;
+        }
+    }
+
+    final Format format;
+    final int rows;
+    final int classes;
+
+    // one of these holds the table, by format. char is Java's unsigned short
+    private float[] floats;
+    private char[] shorts;
+    private byte[] bytes;
+
+    // width of one step of each class, SHORT and BYTE only
+    private final double[] scales;
+
+    private QuantizedTable(Format format, int rows, int classes) {
+        this.format = format;
+        this.rows = rows;
+        this.classes = classes;
+        this.scales = new double[classes];
+    }
+
+    // quantize the log counts of the rows of model, which must be trained
+    static QuantizedTable fromModel(Model model, Format format){
+        int rows = model.rows();
+        int classes = model.classes;
+        if((long) rows * classes > Integer.MAX_VALUE){
+            throw new IllegalStateException(rows + " words by " + classes + " classes is too large a table");
+        }
+        QuantizedTable table = new QuantizedTable(format, rows, classes);
+        int size = rows * classes;
+
+        if(format == Format.FLOAT){
+            table.floats = new float[size];
+            for(int id = 0; id < rows; id++){
+                for(int i = 0; i < classes; i++){
+                    table.floats[id * classes + i] = (float) model.logCount(id, i);
+                }
+            }
+            return table;
+        }
+
+        int steps = format == Format.SHORT ? 0xFFFF : 0xFF;
+        for(int id = 0; id < rows; id++){
+            for(int i = 0; i < classes; i++){
+                table.scales[i] = Math.max(table.scales[i], model.logCount(id, i) - Category.LOG_SMOOTHING);
+            }
+        }
+        for(int i = 0; i < classes; i++) table.scales[i] /= steps;
+
+        if(format == Format.SHORT) table.shorts = new char[size];
+        else table.bytes = new byte[size];
+        for(int id = 0; id < rows; id++){
+            for(int i = 0; i < classes; i++){
+                double scale = table.scales[i];
+                long step = scale == 0 ? 0 : Math.round((model.logCount(id, i) - Category.LOG_SMOOTHING) / scale);
+                step = Math.max(0, Math.min(steps, step));
+                if(format == Format.SHORT) table.shorts[id * classes + i] = (char) step;
+                else table.bytes[id * classes + i] = (byte) step;
+            }
+        }
+        return table;
+    }
+
+    // log(count + SMOOTHING) of word id in class i, as quantized
+    public double logCount(int id, int i){
+        if(id >= rows) return Category.LOG_SMOOTHING;
+        int n = id * classes + i;
+        switch(format){
+            case FLOAT: return floats[n];
+            case SHORT: return Category.LOG_SMOOTHING + shorts[n] * scales[i];
+            default: return Category.LOG_SMOOTHING + (bytes[n] & 0xFF) * scales[i];
+        }
+    }
+
+    // add the log counts of the first count ids into scores, as
+    // ScoringKernel.addRows does, and return how many ids were below 0. Like
+    // the double kernel, four rows are added per pass over the classes
+    public int addRows(int[] ids, int count, double[] scores){
+        if(format == Format.FLOAT) return addFloatRows(ids, count, scores);
+
+        // the steps of up to chunkWords() words add up exactly in an int, and are
+        // scaled into the scores a chunk at a time
+        int[] steps = new int[classes];
+        int unseen = 0;
+        int[] rows = new int[4];
+        int pending = 0;
+        int chunked = 0;
+        for(int j = 0; j < count; j++){
+            int id = ids[j];
+            if(id < 0){
+                unseen++;
+                continue;
+            }
+            rows[pending++] = id * classes;
+            if(pending == 4){
+                addSteps(rows, pending, steps);
+                pending = 0;
+            }
+            if(++chunked == chunkWords()){
+                addSteps(rows, pending, steps);
+                pending = 0;
+                scaleInto(steps, chunked, scores);
+                chunked = 0;
+            }
+        }
+        addSteps(rows, pending, steps);
+        scaleInto(steps, chunked, scores);
+        return unseen;
+    }
+
+    // words whose steps are sure to fit in an int
+    private int chunkWords(){
+        return Integer.MAX_VALUE / (format == Format.SHORT ? 0xFFFF : 0xFF);
+    }
+
+    // add the steps of the first n rows into steps
+    private void addSteps(int[] rows, int n, int[] steps){
+        int r0 = rows[0], r1 = rows[1], r2 = rows[2], r3 = rows[3];
+        if(format == Format.SHORT){
+            char[] t = shorts;
+            if(n == 4){
+                for(int i = 0; i < classes; i++) steps[i] += t[r0 + i] + t[r1 + i] + t[r2 + i] + t[r3 + i];
+                return;
+            }
+            for(int r = 0; r < n; r++){
+                int row = rows[r];
+                for(int i = 0; i < classes; i++) steps[i] += t[row + i];
+            }
+        } else {
+            byte[] t = bytes;
+            if(n == 4){
+                for(int i = 0; i < classes; i++) steps[i] += (t[r0 + i] & 0xFF) + (t[r1 + i] & 0xFF) + (t[r2 + i] & 0xFF) + (t[r3 + i] & 0xFF);
+                return;
+            }
+            for(int r = 0; r < n; r++){
+                int row = rows[r];
+                for(int i = 0; i < classes; i++) steps[i] += t[row + i] & 0xFF;
+            }
+        }
+    }
+
+    // every one of the seen words is log(SMOOTHING) plus its steps. Clears steps
+    private void scaleInto(int[] steps, int seen, double[] scores){
+        if(seen == 0) return;
+        for(int i = 0; i < classes; i++){
+            scores[i] += seen * Category.LOG_SMOOTHING + steps[i] * scales[i];
+            steps[i] = 0;
+        }
+    }
+
+    // FLOAT rows are added in a float per pass, then into the double score
+    private int addFloatRows(int[] ids, int count, double[] scores){
+        float[] t = floats;
+        int unseen = 0;
+        int r0 = 0, r1 = 0, r2 = 0;
+        int pending = 0;
+        for(int j = 0; j < count; j++){
+            int id = ids[j];
+            if(id < 0){
+                unseen++;
+                continue;
+            }
+            int row = id * classes;
+            switch(pending){
+                case 0: r0 = row; pending = 1; break;
+                case 1: r1 = row; pending = 2; break;
+                case 2: r2 = row; pending = 3; break;
+                default:
+                    for(int i = 0; i < classes; i++){
+                        scores[i] += t[r0 + i] + t[r1 + i] + t[r2 + i] + t[row + i];
+                    }
+                    pending = 0;
+            }
+        }
+        int[] rows = {r0, r1, r2};
+        for(int r = 0; r < pending; r++){
+            for(int i = 0; i < classes; i++) scores[i] += t[rows[r] + i];
+        }
+        return unseen;
+    }
+
+    // bytes held by the table
+    public long memoryBytes(){
+        return (long) format.bytes * rows * classes + 8L * scales.length;
+    }
+
+    public String toString(){
+        return format + " " + rows + "x" + classes + " scales " + Arrays.toString(Arrays.copyOf(scales, Math.min(4, classes)));
+    }
+}
@@ -0,0 +1,195 @@
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Bounded cache of classification results for documents seen before. The key
+// is a 64-bit hash of the document's tokens after stop word removal, so
+// documents that differ only in stop words or spacing share an entry. Each
+// entry remembers Model.version when it was scored, which no two models
+// share, and is dropped the first time it is looked up after the model has
+// changed, or for another model, or after it has lived ttl nanoseconds. Least recently used entries go first when it is full.
+// Split into segments, each behind its own lock, so batch threads and server
+// handlers rarely wait on each other. The bound is on the whole cache, not
+// per segment: every entry records when it was last used, each segment keeps
+// its entries in that order, and the least recently used entry of the cache
+// is the oldest of the segments' first entries.
+class ResultCache {
+
+    // a cached result: the best label, and the scores of the classes labels
+    static class Result {
+        final int label;
+        final int[] labels;
+        final double[] scores;
+        final long version;
+        final long created;
+
+        Result(int label, int[] labels, double[] scores, long version, long created) {
+            this.label = label;
+            this.labels = labels;
+            this.scores = scores;
+            this.version = version;
+            this.created = created;
+        }
+    }
+
+    private static final int SEGMENTS = 16;
+
+    // a cached result and the tick of clock it was last used at
+    private static class Entry {
+        final Result result;
+        long used;
+
+        Entry(Result result, long used) {
+            this.result = result;
+            this.used = used;
+        }
+    }
+
+    // least recently used first
+    private static class Segment extends LinkedHashMap<Long, Entry> {
+        private static final long serialVersionUID = 1L;
+
+        Segment() {
+            super(16, .75f, true);
+        }
+    }
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final int capacity;
+    // entries in all segments
+    private final AtomicInteger entries = new AtomicInteger();
+    // ticks once per use of any entry
+    private final AtomicLong clock = new AtomicLong();
+    // 0 keeps entries until they are evicted or the model changes
+    private final long ttlNanos;
+
+    final LongAdder hits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final LongAdder evictions = new LongAdder();
+
+    // at most capacity entries, each kept for at most ttlSeconds, 0 for no limit
+    ResultCache(int capacity, long ttlSeconds) {
+        if(capacity < 1) throw new IllegalArgumentException("cache capacity must be at least 1: " + capacity);
+        for(int i = 0; i < SEGMENTS; i++) segments[i] = new Segment();
+        this.capacity = capacity;
+        this.ttlNanos = ttlSeconds * 1000000000L;
+    }
+
+    // the result for doc from model, scoring it only on a miss. doc must
+    // have been read with model.stopwordSet
+    public Result classify(Model model, CorpusReader.Document doc){
+        long key = key(doc);
+        long version = model.version;
+        Result result = get(key, version);
+        if(result != null) return result;
+
+        double[] scores = model.scoreDocument(doc);
+        result = result(model, scores, version);
+        put(key, result);
+        return result;
+    }
+
+    // a Result of scores from model as it was at version
+    static Result result(Model model, double[] scores, long version){
+        int[] labels = Arrays.copyOf(model.labels, scores.length);
+        return new Result(model.mostProbableLabel(scores), labels, scores, version, System.nanoTime());
+    }
+
+    // the result cached under key for model version, or null
+    public Result get(long key, long version){
+        Segment segment = segment(key);
+        Result result = null;
+        synchronized(segment){
+            Entry entry = segment.get(key);
+            if(entry != null && (entry.result.version != version || expired(entry.result))){
+                segment.remove(key);
+                entries.decrementAndGet();
+            } else if(entry != null){
+                entry.used = clock.incrementAndGet();
+                result = entry.result;
+            }
+        }
+        if(result == null) misses.increment();
+        else hits.increment();
+        return result;
+    }
+
+    public void put(long key, Result result){
+        Segment segment = segment(key);
+        synchronized(segment){
+            if(segment.put(key, new Entry(result, clock.incrementAndGet())) == null) entries.incrementAndGet();
+        }
+        while(entries.get() > capacity && evictLeastRecentlyUsed()){
+            evictions.increment();
+        }
+    }
+
+    // remove the least recently used entry of the whole cache, false if
+    // there was none. Segments are locked one at a time, so a put racing
+    // with this may see the cache one entry over or under capacity
+    private boolean evictLeastRecentlyUsed(){
+        Segment oldest = null;
+        long oldestUsed = Long.MAX_VALUE;
+        for(Segment segment : segments){
+            synchronized(segment){
+                if(segment.isEmpty()) continue;
+                long used = segment.values().iterator().next().used;
+                if(used < oldestUsed){
+                    oldest = segment;
+                    oldestUsed = used;
+                }
+            }
+        }
+        if(oldest == null) return false;
+        synchronized(oldest){
+            if(oldest.isEmpty()) return false;
+            Iterator<Entry> eldest = oldest.values().iterator();
+            eldest.next();
+            eldest.remove();
+            entries.decrementAndGet();
+            return true;
+        }
+    }
+
+    public int size(){
+        int size = 0;
+        for(Segment segment : segments){
+            synchronized(segment){
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public double hitRate(){
+        long hit = hits.sum();
+        long all = hit + misses.sum();
+        return all == 0 ? 0 : (double) hit / all;
+    }
+
+    private boolean expired(Result result){
+        return ttlNanos > 0 && System.nanoTime() - result.created > ttlNanos;
+    }
+
+    private Segment segment(long key){
+        return segments[(int) (key ^ (key >>> 32)) & (SEGMENTS - 1)];
+    }
+
+    // 64-bit FNV-1a over the bytes of each token followed by its length, an
+    // encoding no two different token lists share
+    static long key(CorpusReader.Document doc){
+        long h = 0xCBF29CE484222325L;
+        for(int i = 0; i < doc.count; i++){
+            int start = doc.starts[i];
+            int end = start + doc.lengths[i];
+            for(int j = start; j < end; j++){
+                h = (h ^ (doc.buf.get(j) & 0xFF)) * 0x100000001B3L;
+            }
+            h = (h ^ doc.lengths[i]) * 0x100000001B3L;
+        }
+        return h;
+    }
+}
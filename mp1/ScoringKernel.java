@@ -0,0 +1,71 @@
+import java.nio.DoubleBuffer;
+
+// Inner loop of dense scoring: add the row of log counts of every word of a
+// document into the class scores. The table is word-major, row id holds the
+// classes log counts of word id from table[offset + id * classes].
+//
+// The array kernel adds four rows per pass over the scores, so each score is
+// loaded and stored once per four words instead of once per word, and the
+// loop over classes is a plain array loop the JIT compiles to SIMD adds. Each
+// score still gets its words added one at a time in document order,
+// ((s + a) + b) + c, so the result is bit for bit the one addRows gives on a
+// DoubleBuffer, which is the fallback for tables that are not on the heap.
+class ScoringKernel {
+
+    // add the rows of the first count ids into scores, skipping ids below 0,
+    // and return how many were skipped
+    static int addRows(double[] table, int offset, int[] ids, int count, int classes, double[] scores){
+        int unseen = 0;
+        int r0 = 0, r1 = 0, r2 = 0;
+        int pending = 0;
+        for(int j = 0; j < count; j++){
+            int id = ids[j];
+            if(id < 0){
+                unseen++;
+                continue;
+            }
+
+            int row = offset + id * classes;
+            switch(pending){
+                case 0: r0 = row; pending = 1; break;
+                case 1: r1 = row; pending = 2; break;
+                case 2: r2 = row; pending = 3; break;
+                default:
+                    for(int i = 0; i < classes; i++){
+                        scores[i] = scores[i] + table[r0 + i] + table[r1 + i] + table[r2 + i] + table[row + i];
+                    }
+                    pending = 0;
+            }
+        }
+
+        // fewer than four left, one at a time in the same order
+        if(pending > 0) addRow(table, r0, classes, scores);
+        if(pending > 1) addRow(table, r1, classes, scores);
+        if(pending > 2) addRow(table, r2, classes, scores);
+        return unseen;
+    }
+
+    private static void addRow(double[] table, int row, int classes, double[] scores){
+        for(int i = 0; i < classes; i++){
+            scores[i] += table[row + i];
+        }
+    }
+
+    // the same for a table in a DoubleBuffer, one row at a time
+    static int addRows(DoubleBuffer table, int[] ids, int count, int classes, double[] scores){
+        int unseen = 0;
+        for(int j = 0; j < count; j++){
+            int id = ids[j];
+            if(id < 0){
+                unseen++;
+                continue;
+            }
+
+            int row = id * classes;
+            for(int i = 0; i < classes; i++){
+                scores[i] += table.get(row + i);
+            }
+        }
+        return unseen;
+    }
+}
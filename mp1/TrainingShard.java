@@ -0,0 +1,49 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Word counts for one chunk of the training file, built by a single worker thread.
+// Uses its own Vocabulary so workers never share state; Model.merge folds the
+// shard into the model. With feature hashing the counts are kept by bucket.
+class TrainingShard {
+
+    // local word -> id, in order of first appearance within the chunk
+    Vocabulary vocab = new Vocabulary();
+
+    // one Category per label in the chunk, in order of first appearance,
+    // counts indexed by local id, or bucket when hashing
+    List<Category> categories = new ArrayList<>();
+    Map<Integer, Category> categoryMap = new HashMap<>();
+
+    // as in Model.hashBits and Model.ngrams
+    final int hashBits;
+    final int ngrams;
+
+    TrainingShard(int hashBits, int ngrams) {
+        this.hashBits = hashBits;
+        this.ngrams = ngrams;
+    }
+
+    // count the words of one training document under its label
+    public void addDocument(CorpusReader.Document doc){
+        Category category = categoryMap.get(doc.label);
+        if(category == null){
+            category = new Category(doc.label);
+            categories.add(category);
+            categoryMap.put(doc.label, category);
+        }
+
+        category.documents++;
+        for(int i = 0; i < doc.count; i++){
+            if(hashBits > 0) category.addWord(doc.hashes[i] & ((1 << hashBits) - 1));
+            else category.addWord(vocab.add(doc.buf, doc.starts[i], doc.lengths[i], doc.hashes[i]));
+        }
+
+        if(ngrams > 1){
+            doc.ensureIds(doc.count + NGrams.count(doc.count, ngrams));
+            int end = NGrams.ids(doc.hashes, doc.count, ngrams, vocab, null, hashBits, doc.key, true, doc.ids, doc.count);
+            for(int i = doc.count; i < end; i++) category.addWord(doc.ids[i]);
+        }
+    }
+}
@@ -0,0 +1,274 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Maps each word to a dense int id (0, 1, 2, ...) in order of first appearance.
+// Words are kept as their UTF-8 bytes in one shared buffer, and lookups take a
+// range of a ByteBuffer so tokens read by CorpusReader never become Strings.
+// Open addressing over primitive buffers so lookups never box. The buffers
+// are on the heap, in direct memory (see copy), or views of the buffer read()
+// was given, such as a mapped model file, so a large vocabulary need not be
+// a large object graph for the GC to trace
+class Vocabulary {
+
+    // slot holds id + 1 of the word hashed there, 0 when empty
+    private IntBuffer slots;
+    // bytes of every word back to back, word id is [offsets[id], offsets[id + 1])
+    private ByteBuffer bytes;
+    private IntBuffer offsets;
+    // hash of every word, by id
+    private IntBuffer hashes;
+    private int size = 0;
+
+    // grown buffers go in direct memory instead of on the heap
+    private final boolean direct;
+    // the buffers are views of the one read() was given, add() copies them
+    // before its first write
+    private boolean shared = false;
+
+    Vocabulary() {
+        this(false);
+    }
+
+    Vocabulary(boolean direct) {
+        this.direct = direct;
+        slots = ints(1024);
+        bytes = bytes(1 << 14);
+        offsets = ints(513);
+        hashes = ints(512);
+    }
+
+    public int size(){
+        return size;
+    }
+
+    public String word(int id){
+        byte[] word = new byte[offsets.get(id + 1) - offsets.get(id)];
+        ByteBuffer source = bytes.duplicate();
+        source.position(offsets.get(id));
+        source.get(word);
+        return new String(word, StandardCharsets.UTF_8);
+    }
+
+    // first byte of word id
+    public byte firstByte(int id){
+        return bytes.get(offsets.get(id));
+    }
+
+    // return the id of word, or -1 if it has never been added
+    public int id(String word){
+        byte[] encoded = word.getBytes(StandardCharsets.UTF_8);
+        return id(ByteBuffer.wrap(encoded), 0, encoded.length);
+    }
+
+    // return the id of word, giving it the next free id if it is new
+    public int add(String word){
+        byte[] encoded = word.getBytes(StandardCharsets.UTF_8);
+        return add(ByteBuffer.wrap(encoded), 0, encoded.length);
+    }
+
+    // add word id of other to this vocabulary, returns its id here
+    public int add(Vocabulary other, int id){
+        int start = other.offsets.get(id);
+        return add(other.bytes, start, other.offsets.get(id + 1) - start, other.hashes.get(id));
+    }
+
+    // return the id of the word in bytes [off, off + len) of buf, or -1.
+    // Probes a local copy of the slot table so a lookup racing with add()
+    // always ends, Model checks the result is consistent
+    public int id(ByteBuffer buf, int off, int len){
+        return id(buf, off, len, hash(buf, off, len));
+    }
+
+    // same as above when the caller already has hash(buf, off, len)
+    public int id(ByteBuffer buf, int off, int len, int hash){
+        IntBuffer slots = this.slots;
+        int mask = slots.capacity() - 1;
+        for(int i = hash & mask; ; i = (i + 1) & mask){
+            int slot = slots.get(i);
+            if(slot == 0) return -1;
+            if(hashes.get(slot - 1) == hash && matches(slot - 1, buf, off, len)) return slot - 1;
+        }
+    }
+
+    // return the id of the word in bytes [off, off + len) of buf, adding it if new
+    public int add(ByteBuffer buf, int off, int len){
+        return add(buf, off, len, hash(buf, off, len));
+    }
+
+    // same as above when the caller already has hash(buf, off, len)
+    public int add(ByteBuffer buf, int off, int len, int hash){
+        int mask = slots.capacity() - 1;
+        int i = hash & mask;
+        for(; slots.get(i) != 0; i = (i + 1) & mask){
+            int id = slots.get(i) - 1;
+            if(hashes.get(id) == hash && matches(id, buf, off, len)) return id;
+        }
+
+        if(shared) unshare();
+        if(size == hashes.capacity()){
+            hashes = grow(hashes, Math.max(16, size * 2));
+            offsets = grow(offsets, Math.max(16, size * 2) + 1);
+        }
+        int start = offsets.get(size);
+        if(start + len > bytes.capacity()) bytes = grow(bytes, Math.max(start + len, bytes.capacity() * 2));
+        for(int j = 0; j < len; j++){
+            bytes.put(start + j, buf.get(off + j));
+        }
+        offsets.put(size + 1, start + len);
+        hashes.put(size, hash);
+        slots.put(i, ++size);
+
+        // keep the table at most half full
+        if(size * 2 > slots.capacity()) rehash();
+        return size - 1;
+    }
+
+    private boolean matches(int id, ByteBuffer buf, int off, int len){
+        int start = offsets.get(id);
+        if(offsets.get(id + 1) - start != len) return false;
+        for(int j = 0; j < len; j++){
+            if(bytes.get(start + j) != buf.get(off + j)) return false;
+        }
+        return true;
+    }
+
+    private void rehash(){
+        IntBuffer grown = ints(slots.capacity() * 2);
+        int mask = grown.capacity() - 1;
+        for(int id = 0; id < size; id++){
+            int i = hashes.get(id) & mask;
+            while(grown.get(i) != 0) i = (i + 1) & mask;
+            grown.put(i, id + 1);
+        }
+        slots = grown;
+    }
+
+    // this vocabulary with the same ids, its buffers on the heap or in
+    // direct memory
+    public Vocabulary copy(boolean direct){
+        Vocabulary copy = new Vocabulary(direct);
+        copy.size = size;
+        copy.slots = copy.grow(slots, slots.capacity());
+        copy.bytes = copy.grow(bytes, Math.max(1, offsets.get(size)));
+        copy.offsets = copy.grow(offsets, Math.max(size + 1, 513));
+        copy.hashes = copy.grow(hashes, Math.max(size, 512));
+        return copy;
+    }
+
+    // take private copies of buffers shared with read()'s caller
+    private void unshare(){
+        slots = grow(slots, slots.capacity());
+        bytes = grow(bytes, bytes.capacity());
+        offsets = grow(offsets, offsets.capacity());
+        hashes = grow(hashes, hashes.capacity());
+        shared = false;
+    }
+
+    private IntBuffer ints(int capacity){
+        if(!direct) return IntBuffer.allocate(capacity);
+        return ByteBuffer.allocateDirect(4 * capacity).order(ByteOrder.nativeOrder()).asIntBuffer();
+    }
+
+    private ByteBuffer bytes(int capacity){
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    // a new buffer of capacity with as much of old at its start as fits
+    private IntBuffer grow(IntBuffer old, int capacity){
+        IntBuffer source = old.duplicate();
+        source.clear();
+        source.limit(Math.min(source.capacity(), capacity));
+        IntBuffer grown = ints(capacity);
+        grown.put(source);
+        grown.clear();
+        return grown;
+    }
+
+    private ByteBuffer grow(ByteBuffer old, int capacity){
+        ByteBuffer source = old.duplicate();
+        source.clear();
+        source.limit(Math.min(source.capacity(), capacity));
+        ByteBuffer grown = bytes(capacity);
+        grown.put(source);
+        grown.clear();
+        return grown;
+    }
+
+    // bytes held by the table
+    public long memoryBytes(){
+        return 4L * slots.capacity() + bytes.capacity() + 4L * offsets.capacity() + 4L * hashes.capacity();
+    }
+
+    // bytes needed by write()
+    public int serializedSize(){
+        return 12 + 4 * (size + 1) + 4 * size + 4 * slots.capacity() + offsets.get(size);
+    }
+
+    // write the table as is, so read() gets it back without rehashing
+    public void write(ByteBuffer out){
+        out.putInt(size).putInt(slots.capacity()).putInt(offsets.get(size));
+        out.asIntBuffer().put(prefix(offsets, size + 1));
+        out.position(out.position() + 4 * (size + 1));
+        out.asIntBuffer().put(prefix(hashes, size));
+        out.position(out.position() + 4 * size);
+        out.asIntBuffer().put(prefix(slots, slots.capacity()));
+        out.position(out.position() + 4 * slots.capacity());
+        ByteBuffer words = bytes.duplicate();
+        words.clear();
+        words.limit(offsets.get(size));
+        out.put(words);
+    }
+
+    private static IntBuffer prefix(IntBuffer buffer, int length){
+        IntBuffer prefix = buffer.duplicate();
+        prefix.clear();
+        prefix.limit(length);
+        return prefix;
+    }
+
+    // read a vocabulary written by write(), leaving in just past it. The
+    // vocabulary is a view of in rather than a copy, so reading one from a
+    // mapped file leaves it in the file's pages, off the heap
+    public static Vocabulary read(ByteBuffer in){
+        Vocabulary vocab = new Vocabulary();
+        vocab.size = in.getInt();
+        int slotCount = in.getInt();
+        int byteCount = in.getInt();
+        vocab.offsets = view(in, 4 * (vocab.size + 1)).asIntBuffer();
+        vocab.hashes = view(in, 4 * vocab.size).asIntBuffer();
+        vocab.slots = view(in, 4 * slotCount).asIntBuffer();
+        vocab.bytes = view(in, byteCount);
+        vocab.shared = true;
+        return vocab;
+    }
+
+    // the next length bytes of in, in its byte order, moving in past them
+    private static ByteBuffer view(ByteBuffer in, int length){
+        ByteBuffer view = in.slice();
+        view.limit(length);
+        in.position(in.position() + length);
+        return view.slice().order(in.order());
+    }
+
+    // FNV-1a over the bytes, with the high bits folded down for the mask.
+    // Split into steps so CorpusReader can hash a token while it scans it
+    static int hash(ByteBuffer buf, int off, int len){
+        int h = HASH_SEED;
+        for(int j = 0; j < len; j++){
+            h = hashStep(h, buf.get(off + j));
+        }
+        return hashFinish(h);
+    }
+
+    static final int HASH_SEED = 0x811C9DC5;
+
+    static int hashStep(int h, byte b){
+        return (h ^ b) * 0x01000193;
+    }
+
+    static int hashFinish(int h){
+        return h ^ (h >>> 16);
+    }
+}